@@ -1,7 +1,27 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class SDFSServer {
     // port number for receiving msgs
@@ -10,56 +30,242 @@ public class SDFSServer {
     // port number for sending files - clients request the file from the server's port 5002
     private static final int port_file = 5002;
 
+    // max number of bytes handed to a single transferTo call when serving a file (-Dsdfs.chunk_size to override)
+    private static final long file_chunk_size = Long.getLong("sdfs.chunk_size", 8 * 1024 * 1024);
+
+    // file transfer framing - request: [kind (1 byte)][offset (8 bytes)][length (8 bytes)][name length (2 bytes)][name (utf-8)]
+    //                         response: [body length (8 bytes), -1 if missing][crc32 (8 bytes)][body]
+    // the body is the whole file, its block manifest, the byte range [offset, offset + length) or the file length, depending on the kind
+    // a chain request pushes a file of the given length instead, see push_chain
+    // a file or range request with the compressed flag gets one more header byte, the encoding - a framed body is a sequence of
+    // [raw length (4 bytes)][stored length (4 bytes)][crc32 of the raw bytes (4 bytes)][stored bytes], deflated unless both lengths are equal
+    // a request with the keep-alive flag leaves the connection open once its response is sent, and the server reads the next request from it
+    private static final int file_request_size = 19;
+    private static final int file_header_size = 16;
+    private static final int frame_header_size = 12;
+    private static final byte REQUEST_COMPRESSED = (byte) 0x80;
+    private static final byte REQUEST_KEEP_ALIVE = (byte) 0x40;
+    private static final byte ENCODING_PLAIN = 0;
+    private static final byte ENCODING_FRAMED = 1;
+    private static final byte REQUEST_FILE = 0;
+    private static final byte REQUEST_MANIFEST = 1;
+    private static final byte REQUEST_RANGE = 2;
+    private static final byte REQUEST_LENGTH = 3;
+    private static final byte REQUEST_CHAIN = 4;
+    private static final byte REQUEST_BATCH = 5;
+
+    // a batch request opens a session of commands - each is [command (1 byte)][count (4 bytes)][count entries], answered once all its entries are read
+    // stat: [name] -> [timestamp of the local replica (8 bytes), -1 if not stored]      fetch: [name] -> [length (8 bytes), -1 if missing][bytes][crc32 (8 bytes)]
+    // put: [name][timestamp (8 bytes)][replica count (1 byte)][replica ids (4 bytes each)][length (8 bytes)][bytes][crc32 (8 bytes)] -> [staged (1 byte) each]
+    // commit: [name][commit (1 byte), 0 to drop the staged file] -> [committed (1 byte) each]      files still staged when the session ends are dropped
+    // delete: [name] -> [deleted (1 byte) each, 0 if no replica was stored]      names are written as java modified utf-8
+    private static final byte BATCH_STAT = 0;
+    private static final byte BATCH_FETCH = 1;
+    private static final byte BATCH_PUT = 2;
+    private static final byte BATCH_DELETE = 3;
+    private static final byte BATCH_COMMIT = 4;
+
+    // files are split into fixed-size blocks named by their sha-256 - only blocks missing locally are transferred (-Dsdfs.block_size to override)
+    private static final int block_size = Integer.getInteger("sdfs.block_size", 4 * 1024 * 1024);
+
+    // max number of blocks or ranges one get or update fetches at once
+    private static final int block_fetch_threads = 8;
+
+    // a get with several up-to-date replicas and no local copy reads byte ranges of this size from all of them at once (-Dsdfs.striped_get=false to disable)
+    private static final boolean striped_get = Boolean.parseBoolean(System.getProperty("sdfs.striped_get", "true"));
+    private static final long stripe_size = Long.getLong("sdfs.stripe_size", 8 * 1024 * 1024);
+
+    // new files are pushed down a chain of the replicas, each forwarding the file to the next while persisting it (-Dsdfs.chain_replication=false to disable)
+    private static final boolean chain_replication = Boolean.parseBoolean(System.getProperty("sdfs.chain_replication", "true"));
+
+    // files and ranges are fetched as deflated frames of compression_block_size (-Dsdfs.compression=true) - a node serves them framed only
+    // if it has compression enabled too, and stops deflating a transfer whose first frames do not shrink
+    private static final boolean compression = Boolean.parseBoolean(System.getProperty("sdfs.compression", "false"));
+    private static final int compression_block_size = 256 * 1024;
+    private static final int compression_level = Integer.getInteger("sdfs.compression_level", Deflater.BEST_SPEED);
+    private static final int incompressible_frames = 4;
+
+    // per-thread deflater and inflater for framed transfers, reset for every frame
+    private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(compression_level, true));
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    // replicas a batch operation talks to at once, and the stream buffers of a batch session
+    private static final int batch_threads = 16;
+    private static final int batch_buffer_size = 64 * 1024;
+
+    // threads receiving chain transfers, and the size of the chunks forwarded down the chain
+    private static final int chain_threads = 16;
+    private static final int chain_chunk_size = 1024 * 1024;
+
+    // threads handling received control messages, threads fetching the files of received commits, and the number of messages that may be waiting for either
+    private static final int receiver_workers = 8;
+    private static final int receiver_transfer_threads = 16;
+    private static final int receiver_queue_size = 8192;
+
+    // max number of concurrent connections on the file server - accepting pauses once reached
+    private static final int max_file_connections = 4096;
+
+    // file requests reuse idle connections to each node instead of connecting for every request (-Dsdfs.connection_pool=false to disable)
+    // at most pool_idle_per_peer are kept per node, and the file server closes connections left idle for keep_alive_timeout (ms)
+    private static final boolean connection_pool = Boolean.parseBoolean(System.getProperty("sdfs.connection_pool", "true"));
+    private static final int pool_idle_per_peer = block_fetch_threads;
+    private static final long keep_alive_timeout = Long.getLong("sdfs.keep_alive_timeout", 30000);
+
+    // threads opening requested files and computing their checksums for the file server
+    private static final int file_prepare_threads = 4;
+
     // index from 1 - 10
     private int index;
 
-    // used for calculate the quorum
-    private int count_put = 0;
-    private long timestamp_put = 0;
-    private int count_put_commit = 0;
-    private int count_get = 0;
-    private long timestamp_get = 0;
-    private String maxip_get = null;
-    private int count_delete = 0;
-    private int count_rerep = 0;
+    // how long to wait for a quorum of control acks, and for acks that follow a file transfer (ms)
+    private static final long quorum_timeout = Long.getLong("sdfs.quorum_timeout", 10000);
+    private static final long transfer_timeout = Long.getLong("sdfs.transfer_timeout", 600000);
+
+    // per-thread buffer control messages are encoded into before being sent, and the packet sending it
+    private static final ThreadLocal<ByteBuffer> send_buffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SDFSMessage.MAX_SIZE));
+    private static final ThreadLocal<DatagramPacket> send_packet = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+
+    // resolved addresses of the members by id, and of peers replied to by ip - dropped whenever the membership changes
+    private final ConcurrentHashMap<Integer, InetSocketAddress> member_addresses = new ConcurrentHashMap<Integer, InetSocketAddress>();
+    private final ConcurrentHashMap<String, InetSocketAddress> peer_addresses = new ConcurrentHashMap<String, InetSocketAddress>();
+
+    // address resolutions, and time spent in each send of a control message (us)
+    private final AtomicLong resolver_calls = new AtomicLong();
+    private final LatencyHistogram send_latency = new LatencyHistogram("us");
+
+    // quorum operations waiting for acks - keyed by request id, signalled by the ReceiverThread
+    private final ConcurrentHashMap<Long, PendingOperation> pending_operations = new ConcurrentHashMap<Long, PendingOperation>();
+
+    // requests are retransmitted until acked - timeout before a peer's rtt is measured, its bounds (ms), and max retransmissions of a request
+    private static final long initial_rto = 500;
+    private static final long min_rto = 50;
+    private static final long max_rto = 5000;
+    private static final int max_retransmits = Integer.getInteger("sdfs.max_retransmits", 6);
+
+    // how long a received request is remembered, so that its retransmissions are not handled again (ms)
+    private static final long dedup_window = 120000;
+
+    // retransmission timeout towards each peer - keyed by ip
+    private final ConcurrentHashMap<String, RttEstimator> rtt = new ConcurrentHashMap<String, RttEstimator>();
+
+    // timer retransmitting unacked requests
+    private final ScheduledExecutorService retransmitter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "retransmitter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // bytes served as frames before and after deflating
+    private final AtomicLong compressed_bytes = new AtomicLong();
+    private final AtomicLong framed_bytes = new AtomicLong();
+
+    // requests retransmitted, and received requests suppressed as duplicates
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    // sequence for request ids - combined with the node index so ids are unique across the group
+    private final AtomicLong request_sequence = new AtomicLong();
+
+    // block manifests of local files - keyed by local path, recomputed once the file changes size or modification time
+    private final ConcurrentHashMap<String, BlockManifest> manifests = new ConcurrentHashMap<String, BlockManifest>();
+
+    // crc32 of whole local files served by the file server - keyed by local path, computed again once the file changes size or modification time
+    private final ConcurrentHashMap<String, FileChecksum> checksums = new ConcurrentHashMap<String, FileChecksum>();
+
+    // time spent waiting for each quorum phase (put-request, put-commit, get, delete, rerep)
+    private final ConcurrentHashMap<String, LatencyHistogram> operation_latency = new ConcurrentHashMap<String, LatencyHistogram>();
 
     // UDP socket programming
     private DatagramSocket udp_socket;
 
-    // TCP socket programming
-    private ServerSocket serv_sock;
+    // TCP socket programming - channel based so that files can be sent with zero-copy transferTo
+    private ServerSocketChannel serv_sock;
+
+    // receiver of the control messages - chain transfers record the commits they deliver with it, see receive_chain
+    private ReceiverThread receiver;
 
     // membership list maintainer - from MP2
     private MembershipListMaintainer membershipListMaintainer;
 
-    // a hash table mapping from SDFS file names to SDFS file objects (whole sdfs directory)
-    private HashMap<String, SDFSFile> SDFSFileList;
+    // log lines are queued by the calling thread and written to the membership list maintainer's log in the background
+    private final AsyncLogger logger;
+
+    // lowest level logged - DEBUG includes every control message sent and received, INFO every step of an operation
+    private static final int log_level = AsyncLogger.level(System.getProperty("sdfs.log_level", "DEBUG"));
+
+    // log lines that may be queued before the writer catches up - lines beyond are dropped and counted, errors included
+    private static final int log_capacity = 1 << 16;
 
-    // a set of SDFS file names (local sdfs directory)
-    private HashSet<String> localSDFSFileList;
+    // number of replicas of each file
+    private static final int replication_factor = 4;
 
-    // mapping from sdfs file name to local file path
-    private HashMap<String, String> SDFSFileMapping;
+    // re-replication - files repaired at once, transfers to one target node at once, and the bandwidth the transfers may use (bytes/s, 0 for unlimited)
+    private static final int rerep_threads = Integer.getInteger("sdfs.rerep_threads", 8);
+    private static final int rerep_per_target = Integer.getInteger("sdfs.rerep_per_target", 2);
+    private static final long rerep_bandwidth = Long.getLong("sdfs.rerep_bandwidth", 64L * 1024 * 1024);
 
-    // start the service
-    private void start() {
+    // attempts at re-replicating a file to a node before it is handed back to the RereplicateThread
+    private static final int rerep_attempts = 3;
+
+    // metadata changes are sent to the group in batches this often, and a random member is asked to reconcile this often (ms)
+    private static final long gossip_interval = Long.getLong("sdfs.gossip_interval", 50);
+    private static final long anti_entropy_interval = Long.getLong("sdfs.anti_entropy_interval", 5000);
+
+    // how long a deleted file is remembered, so that reconciling with a stale member does not bring it back (ms)
+    private static final long tombstone_ttl = Long.getLong("sdfs.tombstone_ttl", 600000);
+
+    // repairs are triggered by membership changes - every local file is still checked this often as a safety net (ms)
+    private static final long rerep_scan_interval = Long.getLong("sdfs.rerep_scan_interval", 60000);
+
+    // repairs files whose replicas failed, see RereplicateThread
+    private final RereplicationScheduler rereplication = new RereplicationScheduler();
+
+    // spreads inserts, deletes and replica updates to the group, see GossipThread
+    private final MetadataDissemination dissemination = new MetadataDissemination();
+
+    // copies of files this node fetched by get, bounded by cache_bytes (-Dsdfs.cache_bytes=0 to disable)
+    private static final long cache_bytes = Long.getLong("sdfs.cache_bytes", 256L * 1024 * 1024);
+    private final ReadCache read_cache = new ReadCache();
+
+    // get checks the newest version with the replicas before using a local replica, and skips the transfer when the local replica or the
+    // copy an earlier get left at the destination is that version (-Dsdfs.version_check=false to use local replicas unchecked)
+    private static final boolean version_check = Boolean.parseBoolean(System.getProperty("sdfs.version_check", "true"));
+
+    // copies left by get - keyed by local path, valid while the file keeps its size and modification time
+    private final ConcurrentHashMap<String, FetchedCopy> fetched = new ConcurrentHashMap<String, FetchedCopy>();
+
+    // gets answered without any file transfer
+    private final AtomicLong version_hits = new AtomicLong();
+
+    // idle connections to the file servers of the other nodes, see ConnectionPool
+    private final ConnectionPool file_connections = new ConnectionPool();
+
+    // decides which nodes store each file
+    private final PlacementStrategy placement;
+
+    // whole sdfs directory, local sdfs directory and sdfs file name to local file path mapping - shared by all threads
+    private final SDFSMetadataStore metadata;
+
+    // start the service and block until it exits - the console commands are read from stdin only if interactive
+    public void start(boolean interactive) {
         // start the UDP socket
         try {
             this.udp_socket = new DatagramSocket(port);
         } catch (SocketException e) {
-            this.membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - Socket creation failed!");
+            this.logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Socket creation failed!");
             e.printStackTrace();
         }
-        membershipListMaintainer.log("UDP socket is created.");
+        logger.info("UDP socket is created.");
 
         // start the TCP socket
         try {
-            serv_sock = new ServerSocket(port_file);
+            serv_sock = ServerSocketChannel.open();
+            serv_sock.bind(new InetSocketAddress(port_file));
         } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - Socket creation failed!");
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Socket creation failed!");
             e.printStackTrace();
         }
-        membershipListMaintainer.log("TCP socket is created.");
+        logger.info("TCP socket is created.");
 
         // start the membership protocol service
         System.out.println("Starting membership list maintainer..");
@@ -69,38 +275,48 @@ public class SDFSServer {
 
         // start threads
         MonitorThread monitor = new MonitorThread();
-        ReceiverThread receiver = new ReceiverThread();
+        this.receiver = new ReceiverThread();
         FileServerThread fileServer = new FileServerThread();
         RereplicateThread rereplicateThread = new RereplicateThread();
+        GossipThread gossip = new GossipThread();
 
-        monitor.start();
-        receiver.start();
+        if (interactive) {
+            monitor.start();
+        }
+        this.receiver.start();
         fileServer.start();
         rereplicateThread.start();
+        gossip.start();
 
         // waiting for threads to terminate
         try {
             maintainer.join();
             monitor.join();
-            receiver.join();
+            this.receiver.join();
             fileServer.join();
             rereplicateThread.join();
+            gossip.join();
         } catch (InterruptedException e) {
-            membershipListMaintainer.log("[ERROR] " + membershipListMaintainer.server_id_in_log() + " - Thread execution interrupted!");
+            logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Thread execution interrupted!");
             e.printStackTrace();
         }
     }
 
     // end the service
     private void end() {
+        this.logger.flush();
         membershipListMaintainer.end();
 
-        // close the socket
+        // flush the metadata log
+        this.metadata.close_log();
+
+        // close the sockets and the idle file connections
+        this.file_connections.clear();
         try {
             this.udp_socket.close();
             this.serv_sock.close();
         } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + membershipListMaintainer.server_id_in_log() + " - Socket closing failed!");
+            logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Socket closing failed!");
             e.printStackTrace();
         }
     }
@@ -110,816 +326,4948 @@ public class SDFSServer {
      */
     public SDFSServer(MembershipListMaintainer membershipListMaintainer, int index) {
         this.membershipListMaintainer = membershipListMaintainer;
+        this.logger = new AsyncLogger(membershipListMaintainer, log_level, log_capacity);
+        this.logger.start();
         this.index = index;
-        this.SDFSFileList = new HashMap<String, SDFSFile>();
-        this.localSDFSFileList = new HashSet<String>();
-        this.SDFSFileMapping = new HashMap<String, String>();
+        this.metadata = new SDFSMetadataStore();
+        this.placement = new ConsistentHashRing(
+                () -> this.membershipListMaintainer.getMembership_list().size(),
+                id -> this.membershipListMaintainer.getMembership_list().get(id - 1).getStatus() == 1);
+
+        // rebuild the file tables from the metadata log - only replicas still on disk are kept
+        try {
+            long begin = System.nanoTime();
+            int recovered = this.metadata.open_log(Paths.get(sdfs_dir()));
+            this.metadata.retain_local();
+            logger.info("Recovered ", recovered, " metadata records in ",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), " ms - ", this.metadata.localFiles().size(), " local replicas");
+        } catch (IOException e) {
+            logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Metadata log recovery failed!");
+            e.printStackTrace();
+        }
+
+        // cached copies are not kept across restarts
+        this.read_cache.clear();
     }
 
     /**
      * Helper functions
      */
-    // hash function mapping from a string (file name) to an integer within 10 virtual machines
-    private int hash(String input) {
-        // start from 1, 2, ..., 9, 10
-        return Math.abs(input.hashCode()) % 10 + 1;
+    // directory holding the sdfs replicas (and the metadata log) of this node
+    private static String sdfs_dir() {
+        String currentDirectory = System.getProperty("user.dir");
+        return currentDirectory.substring(0, currentDirectory.length() - 7) + "sdfs_dir/";
     }
 
     // translate sdfs file names to local file paths
     private String sdfsToLocal(String sdfs_file_name) {
-        return this.SDFSFileMapping.getOrDefault(sdfs_file_name, null);
+        return this.metadata.getSourcePath(sdfs_file_name);
     }
 
     // given the node index, find all SDFS files stored on that node
     public ArrayList<String> findSDFSFiles(int id) {
-        ArrayList<String> files = new ArrayList<String>();
-        for (String sdfs_file_name : this.SDFSFileList.keySet()) {
-            if (this.SDFSFileList.get(sdfs_file_name).getReplicas().contains(id)) {
-                files.add(sdfs_file_name);
-            }
-        }
-        return files;
+        return this.metadata.filesOn(id);
     }
 
-    // given current replicas, find the next active replica
-    private int findNextReplica(HashSet<Integer> replicas) {
-        int index = 0;
-        int curr_index = Collections.max(replicas) + 1;
-        while (index == 0) {
-            if (curr_index == 11) {
-                curr_index = 1;
-            }
-            if (!replicas.contains(curr_index) && this.membershipListMaintainer.getMembership_list().get(curr_index - 1).getStatus() == 1) {
-                index = curr_index;
-            }
-            curr_index += 1;
-        }
-        return index;
+    // given current replicas, find the next active replica for the file - 0 if every active node is already a replica
+    private int findNextReplica(String sdfs_filename, Set<Integer> replicas) {
+        return this.placement.nextReplica(sdfs_filename, replicas);
     }
 
-    // find initial replicas - assume that there are more than 4 alive nodes in the group (otherwise infinite loop)
+    // find initial replicas - fewer than replication_factor if not enough nodes are active
     private HashSet<Integer> findInitialReplicas(String sdfs_filename) {
-        HashSet<Integer> replicas = new HashSet<Integer>();
-        int count = 4;
-        int index = this.hash(sdfs_filename);
-        while (count > 0) {
-            if (this.membershipListMaintainer.getMembership_list().get(index - 1).getStatus() == 1) {
-                replicas.add(index);
-                count -= 1;
-            }
-            index += 1;
-            if (index > 10) {
-                index -= 10;
+        return this.placement.initialReplicas(sdfs_filename, replication_factor);
+    }
+
+    // new request id carried by every message of an operation - node index in the top 16 bits, sequence number below
+    private long next_request_id() {
+        return ((long) this.index << 48) | this.request_sequence.incrementAndGet();
+    }
+
+    // register a quorum operation under a new request id - must happen before its requests are sent so that no ack is missed
+    private PendingOperation begin_operation(String ack_type, int quorum) {
+        PendingOperation op = new PendingOperation(next_request_id(), ack_type, quorum);
+        this.pending_operations.put(op.getRequestId(), op);
+        return op;
+    }
+
+    // wait until the quorum is met or the timeout expires, then unregister - return false on timeout
+    private boolean await_operation(PendingOperation op, String sdfs_filename, String phase, long timeout) {
+        long begin = System.nanoTime();
+        boolean met = false;
+        try {
+            met = op.await(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.pending_operations.remove(op.getRequestId());
+        }
+        LatencyHistogram histogram = this.operation_latency.computeIfAbsent(phase, k -> new LatencyHistogram());
+        if (met) {
+            histogram.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        } else {
+            histogram.record_timeout();
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - ", phase, " #", op.getRequestId(),
+                    " timed out with ", op.getAcks(), "/", op.getQuorum(), " ACKs - ", sdfs_filename);
+        }
+        return met;
+    }
+
+    // record an ack for a pending operation - acks for finished or unknown operations are ignored
+    private void ack_operation(long request_id, String ack_type, String ip, long timestamp) {
+        PendingOperation op = this.pending_operations.get(request_id);
+        if (op == null || !op.getAckType().equals(ack_type)) {
+            logger.debug("Ignored ", ack_type, " #", request_id, " from ", ip, " - no such pending operation");
+            return;
+        }
+        op.ack(ip, timestamp);
+        // only acks sent straight back measure the round trip - never those following a file transfer
+        if (ack_type.equals("ack-put") || ack_type.equals("ack-get") || ack_type.equals("ack-delete")) {
+            long rtt = op.roundTrip(ip);
+            if (rtt >= 0) {
+                rtt_of(ip).sample(rtt / 1e6);
             }
         }
-        return replicas;
     }
 
-    // send via UDP - return 0 if no error when sending, -1 otherwise
-    private int send_msg(DatagramSocket socket, String msg, String dest_ip, String message_type) {
-        byte[] buf = msg.getBytes();
-        DatagramPacket packet;
-        try {
-            packet = new DatagramPacket(buf, buf.length, InetAddress.getByName(dest_ip), SDFSServer.port);
-        } catch (UnknownHostException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - error creating UDP packet - unknown host [" + dest_ip + "]");
-            e.printStackTrace();
+    // round-trip estimator of a peer
+    private RttEstimator rtt_of(String ip) {
+        return this.rtt.computeIfAbsent(ip, k -> new RttEstimator());
+    }
+
+    // send a request of a pending operation to the member with the given id, and retransmit it until that member acks
+    // or the operation finishes - return -1 if the member's address could not be resolved
+    private int send_reliable(PendingOperation op, SDFSMessage msg, int id) {
+        InetSocketAddress address = member_address(id);
+        if (address == null) {
             return -1;
         }
-        try {
-            socket.send(packet);
-        } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - error sending UDP packet [" + dest_ip + "]");
-            e.printStackTrace();
-        }
-        membershipListMaintainer.log("[MESSAGE] " + this.membershipListMaintainer.server_id_in_log() + " - message sent to " + dest_ip + ":" + SDFSServer.port + " - " + message_type);
+        String ip = address.getAddress().getHostAddress();
+        op.sent(ip, System.nanoTime(), false);
+        send_msg(this.udp_socket, msg, address);
+        schedule_retransmit(op, msg.copy(), address, ip, rtt_of(ip).rto(), 1);
         return 0;
     }
 
-    // send request for files via TCP
-    private void send_request(String ip, String sdfs_filename, String local_path) {
-        Socket clientSocket = null;
-        PrintWriter out = null;
-        BufferedReader in = null;
+    // a request already delivered to the member another way, down a chain - it is sent over udp only once a timeout passes without the member's ack
+    private void follow_up(PendingOperation op, SDFSMessage msg, int id) {
+        InetSocketAddress address = member_address(id);
+        if (address == null) {
+            return;
+        }
+        String ip = address.getAddress().getHostAddress();
+        op.sent(ip, System.nanoTime(), true);
+        schedule_retransmit(op, msg.copy(), address, ip, rtt_of(ip).rto(), 1);
+    }
 
+    // retransmit after timeout (ms) unless acked - the timeout doubles with every attempt
+    private void schedule_retransmit(PendingOperation op, SDFSMessage msg, InetSocketAddress address, String ip, long timeout, int attempt) {
         try {
-            clientSocket = new Socket(ip, port_file);
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - Socket creation failed!");
-            e.printStackTrace();
+            this.retransmitter.schedule(() -> {
+                if (this.pending_operations.get(op.getRequestId()) != op || op.hasAcked(ip)) {
+                    return;
+                }
+                if (attempt > max_retransmits) {
+                    logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - gave up on ", op.getAckType(), " #", op.getRequestId(), " from ", ip);
+                    return;
+                }
+                this.retransmits.incrementAndGet();
+                op.sent(ip, System.nanoTime(), true);
+                send_msg(this.udp_socket, msg, address);
+                schedule_retransmit(op, msg, address, ip, Math.min(timeout * 2, max_rto), attempt + 1);
+            }, timeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
         }
+    }
 
-        // send the name of the requested file
-        assert out != null;
-        out.println(sdfs_filename);
+    // send via UDP - return 0 if no error when sending, -1 otherwise
+    private int send_msg(DatagramSocket socket, SDFSMessage msg, String dest_ip) {
+        return send_msg(socket, msg, peer_address(dest_ip));
+    }
 
-        // open the file to write
-        FileWriter fw = null;
-        File f = new File(local_path);
-        try {
-            fw = new FileWriter(f);
-        } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - File Writer creation failed!");
-            e.printStackTrace();
-        }
+    // send a control message to the member with the given id (from 1)
+    private int send_msg(DatagramSocket socket, SDFSMessage msg, int id) {
+        return send_msg(socket, msg, member_address(id));
+    }
 
-        // read from socket
-        String response = null;
+    // encode into the thread's buffer and send it with the thread's packet - return -1 if the address could not be resolved or the message is too large
+    private int send_msg(DatagramSocket socket, SDFSMessage msg, InetSocketAddress address) {
+        if (address == null) {
+            return -1;
+        }
+        long begin = System.nanoTime();
+        ByteBuffer buf = send_buffer.get();
+        if (!msg.encode(buf)) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Message larger than ", SDFSMessage.MAX_SIZE, " bytes not sent - ", msg.getName());
+            return -1;
+        }
+        DatagramPacket packet = send_packet.get();
+        packet.setData(buf.array(), 0, buf.limit());
+        packet.setSocketAddress(address);
         try {
-            assert in != null;
-            response = in.readLine();
+            socket.send(packet);
         } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - Error reading from the socket!");
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - error sending UDP packet [", address.getHostString(), "]");
             e.printStackTrace();
         }
-        while (response != null) {
-            try {
-                assert fw != null;
-                fw.write(response + "\n");
-                fw.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+        this.send_latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+        if (this.logger.enabled(AsyncLogger.DEBUG)) {
+            // the message may be reused once sent - format it now
+            logger.debug("[MESSAGE] ", this.membershipListMaintainer.server_id_in_log(), " - message sent to ", address.getHostString(), ":", SDFSServer.port, " - ", msg.toString());
+        }
+        return 0;
+    }
+
+    // current retransmission timeout towards each peer
+    private String rto_summary() {
+        StringBuilder sb = new StringBuilder("{");
+        for (String ip : new TreeSet<String>(this.rtt.keySet())) {
+            if (sb.length() > 1) {
+                sb.append(", ");
             }
+            sb.append(ip).append("=").append(this.rtt.get(ip).rto()).append("ms");
+        }
+        return sb.append("}").toString();
+    }
 
-            try {
-                response = in.readLine();
-            } catch (IOException e) {
-                membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - Error reading from the socket!");
-                e.printStackTrace();
+    // cached address of a member - resolved again if the member's ip changed since it was cached
+    private InetSocketAddress member_address(int id) {
+        String ip = this.membershipListMaintainer.getMember(id - 1).getIp();
+        InetSocketAddress address = this.member_addresses.get(id);
+        if (address == null || !address.getHostString().equals(ip)) {
+            address = this.resolve(ip);
+            if (address != null) {
+                this.member_addresses.put(id, address);
             }
         }
+        return address;
+    }
 
-        // close the sockets and I/O stream handles
-        try {
-            in.close();
-            out.close();
-            clientSocket.close();
-        } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - Error closing the socket!");
-            e.printStackTrace();
+    private InetSocketAddress peer_address(String ip) {
+        InetSocketAddress address = this.peer_addresses.get(ip);
+        if (address == null) {
+            address = this.resolve(ip);
+            if (address != null) {
+                this.peer_addresses.put(ip, address);
+            }
         }
+        return address;
+    }
 
-        // close the file writer
+    private InetSocketAddress resolve(String ip) {
+        this.resolver_calls.incrementAndGet();
         try {
-            assert fw != null;
-            fw.close();
-        } catch (IOException e) {
-            membershipListMaintainer.log("[ERROR] " + this.membershipListMaintainer.server_id_in_log() + " - File Writer closing failed!");
+            return new InetSocketAddress(InetAddress.getByName(ip), SDFSServer.port);
+        } catch (UnknownHostException e) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - error creating UDP packet - unknown host [", ip, "]");
             e.printStackTrace();
+            return null;
         }
     }
 
-    /**
-     * Operation functions
-     */
-    // local put
-    private void local_put(String local_filename, String sdfs_filename, long timestamp, HashSet<Integer> replicas) {
-        SDFSFile new_file = new SDFSFile(sdfs_filename, local_filename, replicas, timestamp);
-        if (this.SDFSFileList.containsKey(sdfs_filename)) {
-            this.SDFSFileList.replace(sdfs_filename, new_file);
-        } else {
-            this.SDFSFileList.put(sdfs_filename, new_file);
+    // called when member statuses change - addresses are resolved again on their next use, and idle connections to nodes no longer running are closed
+    private void invalidate_addresses() {
+        this.member_addresses.clear();
+        this.peer_addresses.clear();
+        // the pool is keyed by numeric address, as the ips of replicas are taken from the packets they send - members are listed by host name
+        HashSet<String> running = new HashSet<String>();
+        for (int i = 0; i < this.membershipListMaintainer.getMembership_list().size(); i++) {
+            if (this.membershipListMaintainer.getMember(i).getStatus() == 1) {
+                InetSocketAddress address = member_address(i + 1);
+                if (address != null && address.getAddress() != null) {
+                    running.add(address.getAddress().getHostAddress());
+                }
+            }
         }
-        this.localSDFSFileList.add(sdfs_filename);
-        this.SDFSFileMapping.put(sdfs_filename, local_filename);
+        this.file_connections.retain(running);
     }
 
-    // local get
-    private SDFSFile local_get(String sdfs_filename) {
-        return this.SDFSFileList.get(sdfs_filename);
+    // read from the channel until the buffer is full - throw EOFException if the peer closes early
+    private static void read_fully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) {
+                throw new EOFException("connection closed with " + buf.remaining() + " bytes missing");
+            }
+        }
     }
 
-    // local delete
-    private void local_delete(String sdfs_filename) {
-        this.SDFSFileList.remove(sdfs_filename);
-        if (localSDFSFileList.contains(sdfs_filename)) {
-            this.localSDFSFileList.remove(sdfs_filename);
+    // write the whole buffer at the given position of the file - positional, so blocks can be written by several threads at once
+    private static void write_fully(FileChannel f, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += f.write(buf, position);
         }
     }
 
-    // insert or update to the sdfs
-    private void put(String local_filename, String sdfs_filename) {
-        long begin = new Timestamp(System.currentTimeMillis()).getTime();
-        Timestamp curr_timestamp = new Timestamp(System.currentTimeMillis());
-        long put_timestamp = curr_timestamp.getTime();
-        HashSet<Integer> replicas = null;
+    // request kind and response header for a file or range - the compressed flag is set when compression is enabled
+    private static byte transfer_kind(byte kind) {
+        return compression ? (byte) (kind | REQUEST_COMPRESSED) : kind;
+    }
 
-        int flag = 0; // 0 for insert | 1 for update
-        if (this.SDFSFileList.containsKey(sdfs_filename)) {
-            // existing file -> update
-            replicas = this.SDFSFileList.get(sdfs_filename).getReplicas();
-            flag = 1;
-            membershipListMaintainer.log("Updating file - " + sdfs_filename + " - client side location: " + local_filename);
-        } else {
-            // new file -> insert
-            replicas = findInitialReplicas(sdfs_filename);
-            membershipListMaintainer.log("Inserting new file - " + sdfs_filename + " - client side location: " + local_filename);
+    private static ByteBuffer transfer_header() {
+        return ByteBuffer.allocate(compression ? file_header_size + 1 : file_header_size);
+    }
+
+    // whether the peer answered a transfer with a framed body
+    private static boolean framed(ByteBuffer header) {
+        return compression && header.get(file_header_size) == ENCODING_FRAMED;
+    }
+
+    // receive a framed body into the file at offset - every frame is checked against its crc32 before it is written
+    private static void receive_frames(ReadableByteChannel sock, FileChannel out, long offset, long length) throws IOException {
+        ByteBuffer frame_header = ByteBuffer.allocate(frame_header_size);
+        ByteBuffer stored = ByteBuffer.allocate(compression_block_size);
+        byte[] raw = new byte[compression_block_size];
+        Inflater inflater = SDFSServer.inflater.get();
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (position < length) {
+            frame_header.clear();
+            read_fully(sock, frame_header);
+            int raw_length = frame_header.getInt(0);
+            int stored_length = frame_header.getInt(4);
+            long expected_checksum = frame_header.getInt(8) & 0xFFFFFFFFL;
+            if (raw_length <= 0 || raw_length > compression_block_size || raw_length > length - position || stored_length <= 0 || stored_length > raw_length) {
+                throw new IOException("malformed frame at " + (offset + position));
+            }
+            stored.clear();
+            stored.limit(stored_length);
+            read_fully(sock, stored);
+            byte[] data = stored.array();
+            if (stored_length < raw_length) {
+                inflater.reset();
+                inflater.setInput(data, 0, stored_length);
+                try {
+                    if (inflater.inflate(raw, 0, raw_length) != raw_length || !inflater.finished()) {
+                        throw new IOException("frame at " + (offset + position) + " does not inflate to " + raw_length + " bytes");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupted frame at " + (offset + position), e);
+                }
+                data = raw;
+            }
+            crc.reset();
+            crc.update(data, 0, raw_length);
+            if (crc.getValue() != expected_checksum) {
+                throw new IOException("checksum mismatch in frame at " + (offset + position));
+            }
+            write_fully(out, ByteBuffer.wrap(data, 0, raw_length), offset + position);
+            position += raw_length;
         }
-        System.out.println("Replicas on the SDFS are: " + replicas);
+    }
 
-        // quorum for put operation
-        int quorum = 3;
+    // crc32 of length bytes of a file starting at position - computed over memory-mapped regions, no copies into the heap
+    private static long checksum(FileChannel f, long position, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        long end = position + length;
+        while (position < end) {
+            long size = Math.min(file_chunk_size, end - position);
+            MappedByteBuffer region = f.map(FileChannel.MapMode.READ_ONLY, position, size);
+            crc.update(region);
+            position += size;
+        }
+        return crc.getValue();
+    }
 
-        // in case that local machine is also in the replica list
-        if (replicas.contains(this.index)) {
-            // need one less quorum
-            quorum -= 1;
+    // crc32 of a whole local file, read through f - reuse the cached one while the file is unchanged, and let concurrent requests
+    // for a file wait for the one computing it instead of reading the file again each
+    private long checksum_of(String local_path, FileChannel f) throws IOException {
+        long size = f.size();
+        long modified = Files.getLastModifiedTime(Paths.get(local_path)).toMillis();
+        FileChecksum fresh = new FileChecksum(size, modified, new FutureTask<Long>(() -> checksum(f, 0, size)));
+        FileChecksum cached = this.checksums.compute(local_path, (k, old) -> old != null && old.size == size && old.modified == modified ? old : fresh);
+        if (cached == fresh) {
+            fresh.crc.run();
+        }
+        try {
+            return cached.crc.get();
+        } catch (ExecutionException e) {
+            this.checksums.remove(local_path, cached);
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the checksum of " + local_path);
         }
+    }
 
-        // add sdfs file name to local file path translation
-        this.SDFSFileMapping.put(sdfs_filename, local_filename);
+    // block manifest of a local file - reuse the cached one while the file is unchanged
+    private BlockManifest manifest_of(String local_path) throws IOException {
+        Path path = Paths.get(local_path);
+        long size = Files.size(path);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        BlockManifest cached = this.manifests.get(local_path);
+        if (cached != null && cached.getLength() == size && cached.getModified() == modified) {
+            return cached;
+        }
+        try (FileChannel f = FileChannel.open(path, StandardOpenOption.READ)) {
+            BlockManifest manifest = BlockManifest.compute(f, block_size, modified);
+            this.manifests.put(local_path, manifest);
+            return manifest;
+        }
+    }
 
-        // send put-request to put remotely
-        for (Integer i : replicas) {
-            if (i != this.index) {
-                String msg = "put_" + this.membershipListMaintainer.getMember(this.index - 1).getIp() + "_" + sdfs_filename;
-                int ret = -1;
-                while (ret == -1) {
-                    ret = send_msg(this.udp_socket, msg, this.membershipListMaintainer.getMembership_list().get(i - 1).getIp(), "put_request");
+    // send a request to the file server of ip on a pooled connection - the response header is read into header, the body is left on the returned connection
+    // a reused connection the server closed meanwhile fails before any response arrives - the request is sent again on a new one, as no kind sent here changes anything
+    private PooledConnection open_request(String ip, byte kind, String sdfs_filename, long offset, long length, ByteBuffer header) throws IOException {
+        byte[] name = sdfs_filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(file_request_size + name.length);
+        request.put(connection_pool ? (byte) (kind | REQUEST_KEEP_ALIVE) : kind).putLong(offset).putLong(length).putShort((short) name.length).put(name).flip();
+        while (true) {
+            PooledConnection connection = this.file_connections.borrow(ip);
+            try {
+                request.rewind();
+                while (request.hasRemaining()) {
+                    connection.sock.write(request);
+                }
+                header.clear();
+                read_fully(connection.sock, header);
+                header.flip();
+                return connection;
+            } catch (IOException e) {
+                connection.close();
+                if (!connection.reused) {
+                    throw e;
                 }
+                this.file_connections.stale(ip);
             }
         }
-        membershipListMaintainer.log("Done sending put-request to all replicas - " + sdfs_filename);
+    }
 
-        // waiting for ACKs from other replicas
-        while (count_put < quorum) {
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    // request a manifest, a block or the file length into memory - return null if the peer does not have the file, throw if the body is corrupted
+    private ByteBuffer request_body(String ip, byte kind, String sdfs_filename, long offset, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(file_header_size);
+        try (PooledConnection connection = open_request(ip, kind, sdfs_filename, offset, length, header)) {
+            long body_length = header.getLong();
+            long expected_checksum = header.getLong();
+            if (body_length < 0) {
+                connection.done();
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate((int) body_length);
+            read_fully(connection.sock, body);
+            connection.done();
+            body.flip();
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != expected_checksum) {
+                throw new IOException("checksum mismatch for " + sdfs_filename + " received from " + ip);
             }
+            return body;
         }
-        membershipListMaintainer.log("ACKs are collected meeting quorum for put-request - " + sdfs_filename);
+    }
 
-        // the latest timestamp for the file in the SDFS
-        long timestamp = timestamp_put;
+    // fetch a file from the sources - block by block when there is a local copy to reuse, otherwise striped over several sources or whole from one
+    private int fetch_file(List<String> sources, String sdfs_filename, String local_path) {
+        if (Files.exists(Paths.get(local_path))) {
+            return fetch_blocks(sources, sdfs_filename, local_path);
+        }
+        if (sources.size() > 1 && striped_get) {
+            return fetch_striped(sources, sdfs_filename, local_path);
+        }
+        return send_request(sources.get(0), sdfs_filename, local_path);
+    }
 
-        // reset count and timestamp for put-request
-        count_put = 0;
-        timestamp_put = 0;
+    // fetch a file as byte ranges requested from all sources at once - each range is streamed straight into its place in the file
+    // return 0 once every range is received intact, -1 otherwise
+    private int fetch_striped(List<String> sources, String sdfs_filename, String local_path) {
+        RandomAccessFile out_f = null;
+        ExecutorService pool = null;
+        Path part_path = Paths.get(local_path + ".part");
+        int ret = -1;
 
-        // check whether the update is made within 1 minute
-        long duration = put_timestamp - timestamp;
-        if (duration <= 60000) {
-            Scanner in;
-            in = new Scanner(System.in);
-            String reply;
-            System.out.println("This file has been updated within 1 minute. Are you sure that you want to update again?\n");
-            System.out.println("[Yes/No]:\n");
-            reply = in.nextLine();
-            while (true) {
-                if (reply.equals("No") || reply.equals("no")) {
-                    // cancel this operation
-                    return;
-                } else if (reply.equals("Yes") || reply.equals("yes")) {
-                    // continue this operation
-                    break;
-                } else {
-                    // wrong command
-                    System.out.println("Wrong Command!\n\n");
-                    System.out.println("This file has been updated within 1 minute. Are you sure that you want to update again?\n");
-                    System.out.println("[Yes/No]:\n");
-                    reply = in.nextLine();
+        try {
+            // length of the file, from the first source that has it
+            long length = -1;
+            for (String ip : sources) {
+                try {
+                    ByteBuffer body = request_body(ip, REQUEST_LENGTH, sdfs_filename, 0, 0);
+                    if (body != null) {
+                        length = body.getLong();
+                        break;
+                    }
+                } catch (IOException e) {
+                    logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving file length from ", ip, " - ", sdfs_filename);
                 }
             }
-        }
+            if (length < 0) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - File is not stored on ", sources, " - ", sdfs_filename);
+                return -1;
+            }
 
-        // send commit-put to replicas to confirm
-        // construct the message with replica information
-        String replica_message = "";
-        for (Integer i : replicas) {
-            replica_message += i + "|";
-        }
-        for (Integer i : replicas) {
-            if (i != this.index) {
-                String msg = "commit-put_" + this.membershipListMaintainer.getMember(this.index - 1).getIp() + "_"
-                        + sdfs_filename + "_" + replica_message + "_" + put_timestamp;
-                int ret = -1;
-                while (ret == -1) {
-                    ret = send_msg(this.udp_socket, msg, this.membershipListMaintainer.getMembership_list().get(i - 1).getIp(), "commit-put");
+            out_f = new RandomAccessFile(part_path.toFile(), "rw");
+            out_f.setLength(length);
+            final FileChannel out_channel = out_f.getChannel();
+
+            // consecutive ranges go to different sources
+            int stripes = (int) ((length + stripe_size - 1) / stripe_size);
+            logger.info("Fetching ", stripes, " ranges from ", sources, " - ", sdfs_filename);
+            boolean complete = true;
+            if (stripes > 0) {
+                pool = Executors.newFixedThreadPool(Math.min(block_fetch_threads, stripes));
+                ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                for (int k = 0; k < stripes; k++) {
+                    final long offset = k * stripe_size;
+                    final long size = Math.min(stripe_size, length - offset);
+                    final int first = k % sources.size();
+                    results.add(pool.submit(() -> fetch_range(sources, first, sdfs_filename, offset, size, out_channel)));
+                }
+                for (Future<Boolean> result : results) {
+                    complete &= result.get();
                 }
             }
-        }
-        membershipListMaintainer.log("Done sending commit-put to all replicas - " + sdfs_filename);
 
-        // waiting for ACKs from other replicas
-        while (count_put_commit < quorum) {
+            if (complete) {
+                out_f.close();
+                out_f = null;
+                Files.move(part_path, Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                ret = 0;
+            }
+        } catch (IOException | ExecutionException e) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving ranges from ", sources, " - ", sdfs_filename);
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            // close the file handle, drop a partially received file
             try {
-                Thread.sleep(400);
-            } catch (InterruptedException e) {
+                if (out_f != null) {
+                    out_f.close();
+                }
+                Files.deleteIfExists(part_path);
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        membershipListMaintainer.log("ACKs are collected meeting quorum for put-commit - " + sdfs_filename);
-
-        // reset count
-        count_put_commit = 0;
+        return ret;
+    }
 
-        // local put
-        if (quorum == 2) {
-            local_put(local_filename, sdfs_filename, put_timestamp, replicas);
-        } else {
-            SDFSFile new_file = new SDFSFile(sdfs_filename, null, replicas, -1);
-            if (SDFSServer.this.SDFSFileList.containsKey(sdfs_filename)) {
-                // existing file
-                SDFSServer.this.SDFSFileList.replace(sdfs_filename, new_file);
-            } else {
-                // new file
-                SDFSServer.this.SDFSFileList.put(sdfs_filename, new_file);
-            }
+    // where this node keeps its replica of the sdfs file - the current replica if there is one, otherwise a new file in the sdfs directory
+    private String replica_path(String sdfs_filename) {
+        SDFSFile local_file = this.metadata.getLocal(sdfs_filename);
+        if (local_file != null) {
+            return local_file.getLocalFilePath();
         }
+        return sdfs_dir() + sdfs_filename.replace("/", "-");
+    }
 
-        // broadcast to the rest - only when inserting the file
-        if (flag == 0) {
-            for (int i = 0; i < membershipListMaintainer.getMembership_list().size(); i++) {
-                if (!replicas.contains(i + 1) && i + 1 != this.index) {
-                    String msg = "broadcast-insert_" + this.membershipListMaintainer.getMember(index - 1).getIp()
-                            + "_" + sdfs_filename + "_" + replica_message;
-                    send_msg(udp_socket, msg, membershipListMaintainer.getMember(i).getIp(), "broadcast-insert");
-                }
+    // connect to the file server of ip and start a chain transfer - the request is followed by the chain frame
+    // chain frame: [origin id (4 bytes)][hop count (2 bytes)][hop ids (4 bytes each)][message length (2 bytes)][commit-put message]
+    // then the file itself and its crc32 (8 bytes) are sent on the returned connection
+    private SocketChannel open_chain(String ip, int origin, List<Integer> hops, SDFSMessage commit, long length) throws IOException {
+        SocketChannel sock = SocketChannel.open(new InetSocketAddress(ip, port_file));
+        try {
+            byte[] name = commit.getName().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer message = send_buffer.get();
+            if (!commit.encode(message)) {
+                throw new IOException("commit-put message too large - " + commit.getName());
+            }
+            ByteBuffer request = ByteBuffer.allocate(file_request_size + name.length + 8 + 4 * hops.size() + message.remaining());
+            request.put(REQUEST_CHAIN).putLong(0).putLong(length).putShort((short) name.length).put(name);
+            request.putInt(origin).putShort((short) hops.size());
+            for (Integer id : hops) {
+                request.putInt(id);
             }
+            request.putShort((short) message.remaining()).put(message).flip();
+            while (request.hasRemaining()) {
+                sock.write(request);
+            }
+            return sock;
+        } catch (IOException e) {
+            sock.close();
+            throw e;
         }
-        System.out.println("Put-request is successfully executed on the SDFS - SDFS file name: " + sdfs_filename);
-        // long end = new Timestamp(System.currentTimeMillis()).getTime();
-        // long seconds = (end - begin) / 1000;
-        // long ms = end - begin - seconds * 1000;
-        // System.out.format("Cost Time: %d seconds %d milliseconds\n", seconds, ms);
     }
 
-    // fetch from sdfs to local
-    private void get(String sdfs_filename, String local_filename) {
-        long begin = new Timestamp(System.currentTimeMillis()).getTime();
-        // check if it contains the file locally
-        if (this.localSDFSFileList.contains(sdfs_filename)) {
-            System.out.println("File is stored locally at: " + local_get(sdfs_filename).getLocalFilePath());
-            return;
-        } else if (this.SDFSFileList.containsKey(sdfs_filename)) {
-            // send get-request to replicas
-            for (Integer i : this.SDFSFileList.get(sdfs_filename).getReplicas()) {
-                String msg = "get_" + this.membershipListMaintainer.getMember(this.index - 1).getIp() + "_" + sdfs_filename;
-                int ret = -1;
-                while (ret == -1) {
-                    ret = send_msg(this.udp_socket, msg, this.membershipListMaintainer.getMembership_list().get(i - 1).getIp(), "get_request");
+    // push a local file down a chain of replicas - the first hop forwards it to the next one while persisting it, and every hop acks the origin
+    // a hop that cannot be reached or fails midway is skipped and the file is pushed again to the hops after it - return false if none took it
+    private boolean push_chain(String local_path, int origin, List<Integer> hops, SDFSMessage commit) {
+        for (int h = 0; h < hops.size(); h++) {
+            String ip = this.membershipListMaintainer.getMembership_list().get(hops.get(h) - 1).getIp();
+            try (FileChannel file = FileChannel.open(Paths.get(local_path), StandardOpenOption.READ)) {
+                long length = file.size();
+                try (SocketChannel sock = open_chain(ip, origin, hops.subList(h + 1, hops.size()), commit, length)) {
+                    long position = 0;
+                    while (position < length) {
+                        long sent = file.transferTo(position, Math.min(file_chunk_size, length - position), sock);
+                        if (sent <= 0 && position >= file.size()) {
+                            throw new EOFException("file truncated while being pushed - " + local_path);
+                        }
+                        position += sent;
+                    }
+                    ByteBuffer trailer = ByteBuffer.allocate(8);
+                    trailer.putLong(0, checksum(file, 0, length));
+                    while (trailer.hasRemaining()) {
+                        sock.write(trailer);
+                    }
                 }
+                logger.info("Pushed ", length, " bytes down the chain ", hops.subList(h, hops.size()), " - ", commit.getName());
+                return true;
+            } catch (IOException e) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Chain transfer to ", ip, " failed - ", commit.getName());
             }
-            membershipListMaintainer.log("Done sending get-requests to all replicas - " + sdfs_filename);
-        } else {
-            System.out.println("This file does not exit on the SDFS!");
-            return;
         }
+        return false;
+    }
 
-        // waiting for ACKs from other replicas
-        int quorum = 3;
-        while (count_get < quorum) {
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        membershipListMaintainer.log("ACKs are collected meeting quorum for put-request - " + sdfs_filename);
+    // receive a file pushed down the chain - every chunk is forwarded to the next hop before it is persisted, the origin is acked once the file is intact
+    // if the next hop fails, the file is pushed again from this node to the hops after it
+    private void receive_chain(SocketChannel upstream, String sdfs_filename, long length) {
+        RandomAccessFile out_f = null;
+        SocketChannel downstream = null;
+        Path part_path = null;
+        SDFSMessage commit = null;
+        boolean delivered = false;
 
-        String max_ip = maxip_get;
+        try {
+            // chain frame
+            ByteBuffer head = ByteBuffer.allocate(6);
+            read_fully(upstream, head);
+            int origin = head.getInt(0);
+            ByteBuffer ids = ByteBuffer.allocate(4 * (head.getShort(4) & 0xFFFF) + 2);
+            read_fully(upstream, ids);
+            ids.flip();
+            ArrayList<Integer> hops = new ArrayList<Integer>();
+            while (ids.remaining() > 2) {
+                hops.add(ids.getInt());
+            }
+            ByteBuffer message = ByteBuffer.allocate(ids.getShort() & 0xFFFF);
+            read_fully(upstream, message);
+            message.flip();
+            commit = new SDFSMessage();
+            if (!commit.decode(message) || commit.getOpcode() != SDFSMessage.COMMIT_PUT || !commit.getName().equals(sdfs_filename)) {
+                commit = null;
+                throw new IOException("malformed chain frame");
+            }
+
+            // the commit counts as delivered like one received over udp, so its retransmissions by the origin are suppressed or answered with the ack
+            // a commit this node already handles, because a retransmission arrived first, is refused - the upstream hop then skips this node
+            InetSocketAddress origin_address = member_address(origin);
+            if (this.receiver.duplicate(commit.getRequestId(), origin_address == null ? "" : origin_address.getAddress().getHostAddress())) {
+                commit = null;
+                throw new IOException("commit is already being handled");
+            }
+            logger.info("Receiving ", length, " bytes down the chain, next hops ", hops, " - ", sdfs_filename);
+
+            // the next reachable hop - next ends up pointing at the hops after it
+            int next = 0;
+            while (downstream == null && next < hops.size()) {
+                String ip = this.membershipListMaintainer.getMembership_list().get(hops.get(next) - 1).getIp();
+                try {
+                    downstream = open_chain(ip, origin, hops.subList(next + 1, hops.size()), commit, length);
+                } catch (IOException e) {
+                    logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Unable to reach next hop ", ip, " - ", sdfs_filename);
+                }
+                next += 1;
+            }
+            boolean broken = false;
+
+            String local_path = replica_path(sdfs_filename);
+            part_path = Paths.get(local_path + ".part");
+            out_f = new RandomAccessFile(part_path.toFile(), "rw");
+            out_f.setLength(length);
+            FileChannel out_channel = out_f.getChannel();
+
+            // forward then persist each chunk, and finally the trailer
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(8, Math.min(chain_chunk_size, length)));
+            CRC32 crc = new CRC32();
+            long position = 0;
+            while (true) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), position < length ? length - position : 8));
+                read_fully(upstream, chunk);
+                chunk.flip();
+                if (downstream != null) {
+                    try {
+                        ByteBuffer forward = chunk.duplicate();
+                        while (forward.hasRemaining()) {
+                            downstream.write(forward);
+                        }
+                    } catch (IOException e) {
+                        logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Next hop failed during chain transfer - ", sdfs_filename);
+                        downstream.close();
+                        downstream = null;
+                        broken = true;
+                    }
+                }
+                if (position >= length) {
+                    break;
+                }
+                crc.update(chunk.duplicate());
+                int size = chunk.remaining();
+                write_fully(out_channel, chunk, position);
+                position += size;
+            }
+            if (chunk.getLong(0) != crc.getValue()) {
+                throw new IOException("checksum mismatch for chain transfer of " + sdfs_filename);
+            }
+            if (downstream != null) {
+                downstream.close();
+                downstream = null;
+            }
+
+            out_f.close();
+            out_f = null;
+            Files.move(part_path, Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            local_put(local_path, sdfs_filename, commit.getTimestamp(), commit.getReplicaSet());
+            metadata.sync();
+
+            // ack the origin directly - the hops before this one do not wait for it
+            SDFSMessage ack = new SDFSMessage(SDFSMessage.ACK_PUT_COMMIT, commit.getRequestId(), sdfs_filename, 0, null);
+            this.receiver.remember(ack);
+            delivered = true;
+            send_msg(udp_socket, ack, origin);
+            logger.info("Sent back ack-put-commit for chain transfer - ", sdfs_filename);
+
+            if (broken && next < hops.size()) {
+                push_chain(local_path, origin, hops.subList(next, hops.size()), commit);
+            }
+        } catch (IOException e) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Chain transfer failed - ", sdfs_filename);
+            e.printStackTrace();
+        } finally {
+            // a retransmission of a commit that failed here is handled again, the file then being fetched from the origin
+            if (commit != null && !delivered) {
+                this.receiver.forget(commit.getRequestId());
+            }
+            // close the downstream connection and the file handle, drop a partially received file
+            try {
+                if (downstream != null) {
+                    downstream.close();
+                }
+                if (out_f != null) {
+                    out_f.close();
+                }
+                if (part_path != null) {
+                    Files.deleteIfExists(part_path);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // stream one byte range into the file at its offset - try the sources in turn starting from first, return false if none of them sends it intact
+    private boolean fetch_range(List<String> sources, int first, String sdfs_filename, long offset, long size, FileChannel out_channel) {
+        ByteBuffer header = transfer_header();
+        for (int k = 0; k < sources.size(); k++) {
+            String ip = sources.get((first + k) % sources.size());
+            try (PooledConnection connection = open_request(ip, transfer_kind(REQUEST_RANGE), sdfs_filename, offset, size, header)) {
+                long length = header.getLong();
+                long expected_checksum = header.getLong();
+                if (length != size) {
+                    if (length < 0) {
+                        connection.done();
+                    }
+                    logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Range at ", offset, " is not available on ", ip, " - ", sdfs_filename);
+                    continue;
+                }
+                if (framed(header)) {
+                    // every frame is checked on its own
+                    receive_frames(connection.sock, out_channel, offset, size);
+                    connection.done();
+                    return true;
+                }
+                long position = 0;
+                while (position < size) {
+                    long received = out_channel.transferFrom(connection.sock, offset + position, size - position);
+                    if (received <= 0) {
+                        throw new EOFException("connection closed after " + position + " of " + size + " bytes");
+                    }
+                    position += received;
+                }
+                connection.done();
+                if (checksum(out_channel, offset, size) == expected_checksum) {
+                    return true;
+                }
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Checksum mismatch for range at ", offset, " received from ", ip, " - ", sdfs_filename);
+            } catch (IOException e) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving range at ", offset, " from ", ip, " - ", sdfs_filename);
+            }
+        }
+        return false;
+    }
+
+    // fetch a file block by block - blocks already in the local copy are reused, the rest are spread over the sources and fetched in parallel
+    // return 0 once local_path holds the version described by the manifest of the sources, -1 otherwise
+    private int fetch_blocks(List<String> sources, String sdfs_filename, String local_path) {
+        RandomAccessFile out_f = null;
+        ExecutorService pool = null;
+        Path part_path = Paths.get(local_path + ".part");
+        int ret = -1;
+
+        try {
+            // block list of the requested version
+            BlockManifest manifest = null;
+            for (String ip : sources) {
+                try {
+                    ByteBuffer body = request_body(ip, REQUEST_MANIFEST, sdfs_filename, 0, 0);
+                    if (body != null) {
+                        manifest = BlockManifest.decode(body);
+                        break;
+                    }
+                } catch (IOException e) {
+                    logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving block manifest from ", ip, " - ", sdfs_filename);
+                }
+            }
+            if (manifest == null) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - No block manifest available - ", sdfs_filename);
+                return -1;
+            }
+
+            out_f = new RandomAccessFile(part_path.toFile(), "rw");
+            out_f.setLength(manifest.getLength());
+            final FileChannel out_channel = out_f.getChannel();
+
+            // copy the blocks the local copy already has, by content
+            ArrayList<Integer> missing = new ArrayList<Integer>();
+            if (Files.exists(Paths.get(local_path))) {
+                BlockManifest current = manifest_of(local_path);
+                HashMap<ByteBuffer, Integer> current_blocks = new HashMap<ByteBuffer, Integer>();
+                for (int i = 0; i < current.count(); i++) {
+                    current_blocks.putIfAbsent(ByteBuffer.wrap(current.hash(i)), i);
+                }
+                try (FileChannel in_channel = FileChannel.open(Paths.get(local_path), StandardOpenOption.READ)) {
+                    for (int i = 0; i < manifest.count(); i++) {
+                        Integer j = current_blocks.get(ByteBuffer.wrap(manifest.hash(i)));
+                        if (j == null) {
+                            missing.add(i);
+                        } else {
+                            write_fully(out_channel, in_channel.map(FileChannel.MapMode.READ_ONLY, current.offset(j), current.blockLength(j)), manifest.offset(i));
+                        }
+                    }
+                }
+            } else {
+                for (int i = 0; i < manifest.count(); i++) {
+                    missing.add(i);
+                }
+            }
+            logger.info("Fetching ", missing.size(), " of ", manifest.count(), " blocks from ", sources, " - ", sdfs_filename);
+
+            // fetch the rest - consecutive blocks go to different sources
+            boolean complete = true;
+            if (!missing.isEmpty()) {
+                pool = Executors.newFixedThreadPool(Math.min(block_fetch_threads, missing.size()));
+                ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+                final BlockManifest blocks = manifest;
+                for (int k = 0; k < missing.size(); k++) {
+                    final int block = missing.get(k);
+                    final int first = k % sources.size();
+                    results.add(pool.submit(() -> fetch_block(sources, first, sdfs_filename, blocks, block, out_channel)));
+                }
+                for (Future<Boolean> result : results) {
+                    complete &= result.get();
+                }
+            }
+
+            if (complete) {
+                out_f.close();
+                out_f = null;
+                Files.move(part_path, Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                this.manifests.put(local_path, manifest.stamped(Files.getLastModifiedTime(Paths.get(local_path)).toMillis()));
+                ret = 0;
+            }
+        } catch (IOException | ExecutionException e) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving blocks from ", sources, " - ", sdfs_filename);
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            // close the file handle, drop a partially received file
+            try {
+                if (out_f != null) {
+                    out_f.close();
+                }
+                Files.deleteIfExists(part_path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return ret;
+    }
+
+    // fetch one block and write it at its offset - try the sources in turn starting from first, return false if none of them has it intact
+    private boolean fetch_block(List<String> sources, int first, String sdfs_filename, BlockManifest manifest, int block, FileChannel out_channel) {
+        for (int k = 0; k < sources.size(); k++) {
+            String ip = sources.get((first + k) % sources.size());
+            try {
+                ByteBuffer body = request_body(ip, REQUEST_RANGE, sdfs_filename, manifest.offset(block), manifest.blockLength(block));
+                if (body == null || body.remaining() != manifest.blockLength(block)
+                        || !Arrays.equals(BlockManifest.digest(body.duplicate()), manifest.hash(block))) {
+                    logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Block ", block, " from ", ip, " does not match the manifest - ", sdfs_filename);
+                    continue;
+                }
+                write_fully(out_channel, body, manifest.offset(block));
+                return true;
+            } catch (IOException e) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving block ", block, " from ", ip, " - ", sdfs_filename);
+            }
+        }
+        return false;
+    }
+
+    // send request for files via TCP - return 0 if the file is received intact, -1 otherwise
+    // the file is streamed into a preallocated temporary file and only moved over local_path once the checksum matches
+    private int send_request(String ip, String sdfs_filename, String local_path) {
+        PooledConnection connection = null;
+        RandomAccessFile out_f = null;
+        Path part_path = Paths.get(local_path + ".part");
+        int ret = -1;
+
+        try {
+            // request the whole file and read the header - file length and checksum
+            ByteBuffer header = transfer_header();
+            connection = open_request(ip, transfer_kind(REQUEST_FILE), sdfs_filename, 0, 0, header);
+            long length = header.getLong();
+            long expected_checksum = header.getLong();
+            if (length < 0) {
+                connection.done();
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - File is not stored on ", ip, " - ", sdfs_filename);
+                return -1;
+            }
+
+            // stream raw bytes from the socket into the preallocated file - frames are inflated and checked one by one instead
+            out_f = new RandomAccessFile(part_path.toFile(), "rw");
+            out_f.setLength(length);
+            FileChannel out_channel = out_f.getChannel();
+            boolean framed = framed(header);
+            if (framed) {
+                receive_frames(connection.sock, out_channel, 0, length);
+            }
+            long position = framed ? length : 0;
+            while (position < length) {
+                long received = out_channel.transferFrom(connection.sock, position, Math.min(file_chunk_size, length - position));
+                if (received <= 0) {
+                    throw new EOFException("connection closed after " + position + " of " + length + " bytes");
+                }
+                position += received;
+            }
+            connection.done();
+
+            // verify the content before replacing the local copy
+            if (!framed && checksum(out_channel, 0, length) != expected_checksum) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Checksum mismatch for file received from ", ip, " - ", sdfs_filename);
+            } else {
+                out_f.close();
+                out_f = null;
+                Files.move(part_path, Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                ret = 0;
+            }
+        } catch (IOException e) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error receiving file from ", ip, " - ", sdfs_filename);
+            e.printStackTrace();
+        } finally {
+            // hand the connection back or close it, close the file handle, drop a partially received file
+            try {
+                if (out_f != null) {
+                    out_f.close();
+                }
+                if (connection != null) {
+                    connection.close();
+                }
+                Files.deleteIfExists(part_path);
+            } catch (IOException e) {
+                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Error closing the socket!");
+                e.printStackTrace();
+            }
+        }
+        return ret;
+    }
+
+    // copy length bytes of a file to a batch stream
+    private static void copy_out(FileChannel f, long length, OutputStream out, CRC32 crc, byte[] buffer) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        long position = 0;
+        while (position < length) {
+            buf.clear();
+            buf.limit((int) Math.min(buffer.length, length - position));
+            int read = f.read(buf, position);
+            if (read == -1) {
+                throw new EOFException("file truncated while being sent");
+            }
+            crc.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    // copy length bytes of a batch stream into a file
+    private static void copy_in(InputStream in, long length, FileChannel f, CRC32 crc, byte[] buffer) throws IOException {
+        long position = 0;
+        while (position < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+            if (read == -1) {
+                throw new EOFException("connection closed after " + position + " of " + length + " bytes");
+            }
+            crc.update(buffer, 0, read);
+            write_fully(f, ByteBuffer.wrap(buffer, 0, read), position);
+            position += read;
+        }
+    }
+
+    // temporary file of a batch session - named after the session's thread, so that sessions storing the same file at once do not write over each other
+    private static Path batch_part_path(String local_path) {
+        return Paths.get(local_path + ".part" + Thread.currentThread().getId());
+    }
+
+    // read length bytes and their crc32 trailer from a batch stream into part_path - return false, with the stream still in step and
+    // the part removed, if they do not match
+    private static boolean stage_batch_file(DataInputStream in, long length, Path part_path, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        boolean staged = false;
+        try {
+            try (FileChannel out = FileChannel.open(part_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                copy_in(in, length, out, crc, buffer);
+            }
+            staged = in.readLong() == crc.getValue();
+            return staged;
+        } finally {
+            if (!staged) {
+                Files.deleteIfExists(part_path);
+            }
+        }
+    }
+
+    // read length bytes and their crc32 trailer from a batch stream into local_path - return false, with the stream still in step, if they do not match
+    private static boolean receive_batch_file(DataInputStream in, long length, String local_path, byte[] buffer) throws IOException {
+        Path part_path = batch_part_path(local_path);
+        try {
+            if (!stage_batch_file(in, length, part_path, buffer)) {
+                return false;
+            }
+            try {
+                Files.move(part_path, Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(part_path);
+        }
+    }
+
+    // serve a batch session - commands are answered in turn until the client closes the connection
+    private void serve_batch(SocketChannel sock) {
+        byte[] buffer = new byte[batch_buffer_size];
+        // files put in this session and not yet committed, by name
+        HashMap<String, StagedFile> staged = new HashMap<String, StagedFile>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(sock), batch_buffer_size));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(sock), batch_buffer_size));
+            while (true) {
+                int command = in.read();
+                if (command == -1) {
+                    return;
+                }
+                int count = in.readInt();
+                if (command == BATCH_PUT) {
+                    // files are staged as they arrive, the statuses follow the last one - the committed copies stay in place until the commit
+                    byte[] stored = new byte[count];
+                    for (int i = 0; i < count; i++) {
+                        String name = in.readUTF();
+                        long timestamp = in.readLong();
+                        HashSet<Integer> replicas = new HashSet<Integer>();
+                        for (int r = in.readUnsignedByte(); r > 0; r--) {
+                            replicas.add(in.readInt());
+                        }
+                        Path part_path = batch_part_path(replica_path(name));
+                        if (stage_batch_file(in, in.readLong(), part_path, buffer)) {
+                            staged.put(name, new StagedFile(part_path, timestamp, replicas));
+                            stored[i] = 1;
+                        } else {
+                            staged.remove(name);
+                            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Checksum mismatch in batch put - ", name);
+                        }
+                    }
+                    out.write(stored);
+                    out.flush();
+                    logger.info("Staged ", count, " files of a batch put");
+                    continue;
+                }
+                if (command == BATCH_COMMIT) {
+                    // move the staged files that met their quorum over the replicas, drop the others
+                    byte[] committed = new byte[count];
+                    for (int i = 0; i < count; i++) {
+                        String name = in.readUTF();
+                        boolean commit = in.readBoolean();
+                        StagedFile f = staged.remove(name);
+                        if (f == null) {
+                            continue;
+                        }
+                        if (!commit) {
+                            Files.deleteIfExists(f.part_path);
+                            continue;
+                        }
+                        String local_path = replica_path(name);
+                        try {
+                            Files.move(f.part_path, Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                            local_put(local_path, name, f.timestamp, f.replicas);
+                            committed[i] = 1;
+                        } catch (IOException e) {
+                            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Unable to commit staged file - ", name);
+                            Files.deleteIfExists(f.part_path);
+                        }
+                    }
+                    metadata.sync();
+                    out.write(committed);
+                    out.flush();
+                    logger.info("Committed the staged files of a batch put - ", count, " files");
+                    continue;
+                }
+                String[] names = new String[count];
+                for (int i = 0; i < count; i++) {
+                    names[i] = in.readUTF();
+                }
+                switch (command) {
+                    case BATCH_STAT:
+                        for (String name : names) {
+                            SDFSFile f = metadata.getLocal(name);
+                            out.writeLong(f == null ? -1 : f.getTimestamp());
+                        }
+                        break;
+                    case BATCH_FETCH:
+                        for (String name : names) {
+                            String local_path = sdfsToLocal(name);
+                            FileChannel f = null;
+                            try {
+                                f = local_path == null ? null : FileChannel.open(Paths.get(local_path), StandardOpenOption.READ);
+                            } catch (IOException e) {
+                                logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Unable to open file for batch fetch - ", name);
+                            }
+                            if (f == null) {
+                                out.writeLong(-1);
+                                continue;
+                            }
+                            try {
+                                long length = f.size();
+                                CRC32 crc = new CRC32();
+                                out.writeLong(length);
+                                copy_out(f, length, out, crc, buffer);
+                                out.writeLong(crc.getValue());
+                            } finally {
+                                f.close();
+                            }
+                        }
+                        break;
+                    case BATCH_DELETE:
+                        byte[] deleted = new byte[count];
+                        for (int i = 0; i < count; i++) {
+                            deleted[i] = (byte) (local_delete(names[i]) ? 1 : 0);
+                        }
+                        metadata.sync();
+                        out.write(deleted);
+                        break;
+                    default:
+                        throw new IOException("unknown batch command " + command);
+                }
+                out.flush();
+                logger.info("Answered batch command ", command, " for ", count, " files");
+            }
+        } catch (IOException e) {
+            logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Batch session failed");
+            e.printStackTrace();
+        } finally {
+            // a session that ends before its commit leaves the committed copies as they were
+            for (StagedFile f : staged.values()) {
+                try {
+                    Files.deleteIfExists(f.part_path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Operation functions
+     */
+    // local put
+    private void local_put(String local_filename, String sdfs_filename, long timestamp, HashSet<Integer> replicas) {
+        this.metadata.put_local(sdfs_filename, local_filename, replicas, timestamp);
+        this.read_cache.invalidate(sdfs_filename);
+    }
+
+    // local get
+    private SDFSFile local_get(String sdfs_filename) {
+        return this.metadata.get(sdfs_filename);
+    }
 
-        // reset
-        count_get = 0;
-        timestamp_get = 0;
-        maxip_get = null;
+    // local delete - return whether this node stored a replica of the file
+    private boolean local_delete(String sdfs_filename) {
+        boolean stored = this.metadata.remove(sdfs_filename);
+        this.read_cache.invalidate(sdfs_filename);
+        return stored;
+    }
 
-        // request the file and put into local dir
-        System.out.println("Retrieving file " + sdfs_filename + " from " + max_ip);
-        send_request(max_ip, sdfs_filename, local_filename);
-        System.out.println("Get-request is successfully executed on the SDFS - SDFS file name: " + sdfs_filename);
-        System.out.println("File requested is located at: " + local_filename);
-        // long end = new Timestamp(System.currentTimeMillis()).getTime();
-        // long seconds = (end - begin) / 1000;
-        // long ms = end - begin - seconds * 1000;
-        // System.out.format("Cost Time: %d seconds %d milliseconds\n", seconds, ms);
+    // names that do not fit in a control message are refused before anything is sent
+    private static void check_name(String sdfs_filename) throws SDFSException {
+        if (sdfs_filename.getBytes(StandardCharsets.UTF_8).length > SDFSMessage.MAX_NAME_SIZE) {
+            throw new SDFSException("File name longer than " + SDFSMessage.MAX_NAME_SIZE + " bytes - " + sdfs_filename.substring(0, 64) + "...");
+        }
     }
 
-    // delete from sdfs
-    private void delete(String sdfs_filename) {
+    // insert or update to the sdfs - return the timestamp of the version put, throw if no quorum of the replicas stored it
+    // a file updated within the last minute is only updated again with overwrite_recent, otherwise RecentUpdateException is thrown
+    public long putFile(String local_filename, String sdfs_filename, boolean overwrite_recent) throws SDFSException {
+        check_name(sdfs_filename);
+        if (!new File(local_filename).exists()) {
+            throw new SDFSException("File does not exist - " + local_filename);
+        }
+        Timestamp curr_timestamp = new Timestamp(System.currentTimeMillis());
+        long put_timestamp = curr_timestamp.getTime();
         HashSet<Integer> replicas = null;
-        int quorum = 3;
-        if (this.SDFSFileList.containsKey(sdfs_filename)) {
-            // existing file -> delete
-            replicas = this.SDFSFileList.get(sdfs_filename).getReplicas();
+
+        int flag = 0; // 0 for insert | 1 for update
+        SDFSFile existing = this.metadata.get(sdfs_filename);
+        if (existing != null) {
+            // existing file -> update
+            replicas = existing.getReplicas();
+            flag = 1;
+            logger.info("Updating file - ", sdfs_filename, " - client side location: ", local_filename);
         } else {
-            // file does not exist on the SDFS
-            System.out.println("This file does not exist on the SDFS!");
-            return;
+            // new file -> insert
+            replicas = findInitialReplicas(sdfs_filename);
+            logger.info("Inserting new file - ", sdfs_filename, " - client side location: ", local_filename);
         }
+        logger.info("Replicas on the SDFS are: ", replicas, " - ", sdfs_filename);
 
-        // in case that local machine is also in the list
+        // quorum for put operation
+        int quorum = 3;
+
+        // in case that local machine is also in the replica list
         if (replicas.contains(this.index)) {
-            quorum = 2;
+            // need one less quorum
+            quorum -= 1;
+        }
+
+        // add sdfs file name to local file path translation
+        this.metadata.set_source_path(sdfs_filename, local_filename);
+
+        // send put-request to put remotely
+        PendingOperation put_request = begin_operation("ack-put", quorum);
+        for (Integer i : replicas) {
+            if (i != this.index) {
+                SDFSMessage msg = new SDFSMessage(SDFSMessage.PUT, put_request.getRequestId(), sdfs_filename, 0, null);
+                send_reliable(put_request, msg, i);
+            }
+        }
+        logger.info("Done sending put-request to all replicas - ", sdfs_filename);
+
+        // waiting for ACKs from other replicas
+        if (!await_operation(put_request, sdfs_filename, "put-request", quorum_timeout)) {
+            throw new SDFSException("Put-request failed - not enough replicas responded for " + sdfs_filename);
+        }
+        logger.info("ACKs are collected meeting quorum for put-request - ", sdfs_filename);
+
+        // the latest timestamp for the file in the SDFS
+        long timestamp = put_request.getMaxTimestamp();
+
+        // check whether the update is made within 1 minute
+        if (put_timestamp - timestamp <= 60000 && !overwrite_recent) {
+            throw new RecentUpdateException(sdfs_filename, timestamp);
+        }
+
+        // send commit-put to replicas to confirm - the message carries the replica information
+        PendingOperation put_commit = begin_operation("ack-put-commit", quorum);
+        boolean pushed = false;
+        if (chain_replication && flag == 0) {
+            // a new file is pushed down a chain of the replicas so that it leaves this node only once
+            ArrayList<Integer> hops = new ArrayList<Integer>();
+            for (Integer i : replicas) {
+                if (i != this.index) {
+                    hops.add(i);
+                }
+            }
+            SDFSMessage msg = new SDFSMessage(SDFSMessage.COMMIT_PUT, put_commit.getRequestId(), sdfs_filename, put_timestamp, replicas);
+            pushed = push_chain(local_filename, this.index, hops, msg);
+            if (pushed) {
+                // hops whose ack is lost get the commit again over udp and ack once more, hops the chain missed fetch the file from here
+                for (Integer i : hops) {
+                    follow_up(put_commit, msg, i);
+                }
+            }
+        }
+        if (!pushed) {
+            // updates are pulled by every replica, fetching only the blocks that changed
+            for (Integer i : replicas) {
+                if (i != this.index) {
+                    SDFSMessage msg = new SDFSMessage(SDFSMessage.COMMIT_PUT, put_commit.getRequestId(), sdfs_filename, put_timestamp, replicas);
+                    send_reliable(put_commit, msg, i);
+                }
+            }
+        }
+        logger.info("Done sending commit-put to all replicas - ", sdfs_filename);
+
+        // waiting for ACKs from other replicas - each replica downloads the file before acking
+        if (!await_operation(put_commit, sdfs_filename, "put-commit", transfer_timeout)) {
+            throw new SDFSException("Put-request failed - not enough replicas committed " + sdfs_filename);
+        }
+        logger.info("ACKs are collected meeting quorum for put-commit - ", sdfs_filename);
+
+        // local put
+        if (quorum == 2) {
+            local_put(local_filename, sdfs_filename, put_timestamp, replicas);
+        } else {
+            this.metadata.set_replicas(sdfs_filename, replicas);
+        }
+
+        // broadcast to the rest - only when inserting the file
+        if (flag == 0) {
+            this.dissemination.publish(sdfs_filename, replicas);
+        }
+        logger.info("Put-request is successfully executed on the SDFS - ", sdfs_filename);
+        return put_timestamp;
+    }
+
+    // fetch from sdfs to local - return the path holding the newest version, which is the local replica when this node stores it,
+    // throw if no quorum of the replicas responded or the file could not be retrieved
+    public String getFile(String sdfs_filename, String local_filename) throws SDFSException {
+        check_name(sdfs_filename);
+        PendingOperation get_request;
+        SDFSFile local_file = this.metadata.getLocal(sdfs_filename);
+        SDFSFile f = local_get(sdfs_filename);
+        // check if it contains the file locally
+        if (local_file != null && !version_check) {
+            return local_file.getLocalFilePath();
+        } else if (f != null) {
+            // send get-request to replicas
+            get_request = begin_operation("ack-get", 3);
+            for (Integer i : f.getReplicas()) {
+                SDFSMessage msg = new SDFSMessage(SDFSMessage.GET, get_request.getRequestId(), sdfs_filename, 0, null);
+                send_reliable(get_request, msg, i);
+            }
+            logger.info("Done sending get-requests to all replicas - ", sdfs_filename);
+        } else {
+            throw new SDFSException("This file does not exist on the SDFS - " + sdfs_filename);
+        }
+
+        // waiting for ACKs from other replicas
+        if (!await_operation(get_request, sdfs_filename, "get", quorum_timeout)) {
+            throw new SDFSException("Get-request failed - not enough replicas responded for " + sdfs_filename);
+        }
+        logger.info("ACKs are collected meeting quorum for get-request - ", sdfs_filename);
+
+        List<String> sources = get_request.getMaxIps();
+        long timestamp = get_request.getMaxTimestamp();
+
+        // version check - nothing is transferred if the local replica or the destination already holds the newest version
+        if (local_file != null && local_file.getTimestamp() >= timestamp) {
+            this.version_hits.incrementAndGet();
+            logger.info("File is stored locally at: ", local_file.getLocalFilePath());
+            return local_file.getLocalFilePath();
+        }
+        if (is_current(sdfs_filename, timestamp, local_filename)) {
+            this.version_hits.incrementAndGet();
+            logger.info("File requested is up to date at: ", local_filename);
+            return local_filename;
+        }
+
+        // a copy of the newest version fetched before is reused without downloading it again
+        if (this.read_cache.copy_to(sdfs_filename, timestamp, local_filename)) {
+            record_fetched(sdfs_filename, timestamp, local_filename);
+            logger.info("Get-request is served from the read cache - ", sdfs_filename);
+            return local_filename;
+        }
+
+        // request the file and put into local dir - blocks are spread over every replica holding the newest version
+        logger.info("Retrieving file ", sdfs_filename, " from ", sources);
+        if (fetch_file(sources, sdfs_filename, local_filename) == -1) {
+            throw new SDFSException("Get-request failed - file could not be retrieved from " + sources);
+        }
+        this.read_cache.add(sdfs_filename, timestamp, local_filename);
+        record_fetched(sdfs_filename, timestamp, local_filename);
+        logger.info("Get-request is successfully executed on the SDFS - ", sdfs_filename);
+        return local_filename;
+    }
+
+    // remember the version get left at local_path, stamped with the file's size and modification time
+    private void record_fetched(String sdfs_filename, long timestamp, String local_path) {
+        try {
+            Path path = Paths.get(local_path);
+            this.fetched.put(local_path, new FetchedCopy(sdfs_filename, timestamp, Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+        } catch (IOException e) {
+            this.fetched.remove(local_path);
+        }
+    }
+
+    // whether local_path still holds the given version of a file as left there by get
+    private boolean is_current(String sdfs_filename, long timestamp, String local_path) {
+        FetchedCopy copy = this.fetched.get(local_path);
+        if (copy == null || timestamp <= 0 || copy.timestamp != timestamp || !copy.sdfs_filename.equals(sdfs_filename)) {
+            return false;
+        }
+        try {
+            Path path = Paths.get(local_path);
+            return Files.size(path) == copy.size && Files.getLastModifiedTime(path).toMillis() == copy.modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // run a task for every node in parallel, each on the node's batch session - sessions are opened on first use and left open in sessions
+    // for the caller's next phase, a node that cannot be reached or fails midway contributes nothing
+    private void run_batch(Map<Integer, ArrayList<Integer>> work, ConcurrentHashMap<Integer, BatchConnection> sessions, BatchTask task) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(batch_threads, work.size())));
+        try {
+            ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (Map.Entry<Integer, ArrayList<Integer>> e : work.entrySet()) {
+                final int id = e.getKey();
+                final ArrayList<Integer> files = e.getValue();
+                tasks.add(pool.submit(() -> {
+                    try {
+                        BatchConnection session = sessions.get(id);
+                        if (session == null) {
+                            InetSocketAddress address = member_address(id);
+                            if (address == null) {
+                                return;
+                            }
+                            session = new BatchConnection(address.getAddress().getHostAddress());
+                            sessions.put(id, session);
+                        }
+                        task.run(id, session, files);
+                    } catch (IOException ex) {
+                        logger.error("[ERROR] ", this.membershipListMaintainer.server_id_in_log(), " - Batch operation on node #", id, " failed");
+                        BatchConnection broken = sessions.remove(id);
+                        close_quietly(broken);
+                    }
+                }));
+            }
+            for (Future<?> t : tasks) {
+                try {
+                    t.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void close_quietly(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // sdfs files whose names start with sdfs_prefix, by name
+    private TreeMap<String, SDFSFile> files_with_prefix(String sdfs_prefix) {
+        TreeMap<String, SDFSFile> files = new TreeMap<String, SDFSFile>();
+        for (Map.Entry<String, SDFSFile> e : this.metadata.snapshot().entrySet()) {
+            if (e.getKey().startsWith(sdfs_prefix)) {
+                files.put(e.getKey(), e.getValue());
+            }
+        }
+        return files;
+    }
+
+    // hand every replica the files of each replica set it belongs to - files sharing a replica set travel together
+    private HashMap<Integer, ArrayList<Integer>> group_by_replica(List<? extends Set<Integer>> replica_sets, boolean include_self) {
+        LinkedHashMap<Set<Integer>, ArrayList<Integer>> groups = new LinkedHashMap<Set<Integer>, ArrayList<Integer>>();
+        for (int i = 0; i < replica_sets.size(); i++) {
+            groups.computeIfAbsent(replica_sets.get(i), k -> new ArrayList<Integer>()).add(i);
+        }
+        HashMap<Integer, ArrayList<Integer>> work = new HashMap<Integer, ArrayList<Integer>>();
+        for (Map.Entry<Set<Integer>, ArrayList<Integer>> group : groups.entrySet()) {
+            for (Integer id : group.getKey()) {
+                if (include_self || id != this.index) {
+                    work.computeIfAbsent(id, k -> new ArrayList<Integer>()).addAll(group.getValue());
+                }
+            }
+        }
+        return work;
+    }
+
+    private static <T> ArrayList<T> select(List<T> list, List<Integer> indexes) {
+        ArrayList<T> selected = new ArrayList<T>(indexes.size());
+        for (Integer i : indexes) {
+            selected.add(list.get(i));
+        }
+        return selected;
+    }
+
+    // regular files of a directory, sorted - null if it cannot be listed
+    private static ArrayList<Path> regular_files(String local_dir) {
+        ArrayList<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(local_dir))) {
+            for (Path p : dir) {
+                if (Files.isRegularFile(p)) {
+                    paths.add(p);
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    // put files as sdfs_prefix + their file names - each replica receives all of its files in one put command over one connection and stages them,
+    // then one commit command per replica moves the files that the same quorum of their replicas as for put staged into place, and drops the others
+    // a file updated within the last minute is only updated again with overwrite_recent - such files are left out and returned
+    private ArrayList<Path> put_batch(List<Path> paths, String sdfs_prefix, boolean overwrite_recent) {
+        long begin = System.nanoTime();
+        long put_timestamp = System.currentTimeMillis();
+        ConcurrentHashMap<Integer, BatchConnection> sessions = new ConcurrentHashMap<Integer, BatchConnection>();
+
+        // latest version of the files being updated - each of their replicas answers for all of them at once, as to a put-request
+        ArrayList<String> updates = new ArrayList<String>();
+        ArrayList<HashSet<Integer>> update_replicas = new ArrayList<HashSet<Integer>>();
+        for (Path p : paths) {
+            SDFSFile existing = this.metadata.get(sdfs_prefix + p.getFileName());
+            if (existing != null) {
+                updates.add(existing.getSDFSFileName());
+                update_replicas.add(existing.getReplicas());
+            }
+        }
+        AtomicLongArray latest = new AtomicLongArray(updates.size());
+        run_batch(group_by_replica(update_replicas, false), sessions, (id, session, files) -> {
+            long[] timestamps = session.stat(select(updates, files));
+            for (int k = 0; k < timestamps.length; k++) {
+                latest.accumulateAndGet(files.get(k), timestamps[k], Math::max);
+            }
+        });
+        HashMap<String, Long> recent_versions = new HashMap<String, Long>();
+        for (int u = 0; u < updates.size(); u++) {
+            SDFSFile local_file = this.metadata.getLocal(updates.get(u));
+            long timestamp = Math.max(latest.get(u), local_file == null ? -1 : local_file.getTimestamp());
+            if (put_timestamp - timestamp <= 60000 && !overwrite_recent) {
+                recent_versions.put(updates.get(u), timestamp);
+            }
+        }
+
+        ArrayList<Path> recent = new ArrayList<Path>();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> local_paths = new ArrayList<String>();
+        ArrayList<HashSet<Integer>> replica_sets = new ArrayList<HashSet<Integer>>();
+        ArrayList<Boolean> inserts = new ArrayList<Boolean>();
+        for (Path p : paths) {
+            String sdfs_filename = sdfs_prefix + p.getFileName();
+            if (recent_versions.containsKey(sdfs_filename)) {
+                recent.add(p);
+                continue;
+            }
+            SDFSFile existing = this.metadata.get(sdfs_filename);
+            inserts.add(existing == null);
+            names.add(sdfs_filename);
+            local_paths.add(p.toString());
+            replica_sets.add(existing != null ? existing.getReplicas() : findInitialReplicas(sdfs_filename));
+        }
+
+        // stream the files to their replicas, which stage them
+        AtomicIntegerArray acks = new AtomicIntegerArray(names.size());
+        HashMap<Integer, ArrayList<Integer>> work = group_by_replica(replica_sets, false);
+        run_batch(work, sessions, (id, session, files) -> {
+            boolean[] stored = session.put(select(names, files), select(local_paths, files), select(replica_sets, files), put_timestamp);
+            for (int k = 0; k < stored.length; k++) {
+                if (stored[k]) {
+                    acks.incrementAndGet(files.get(k));
+                }
+            }
+        });
+
+        // commit the files that met their quorum on every replica that staged them, and drop the others there
+        ArrayList<Boolean> commit = new ArrayList<Boolean>();
+        for (int i = 0; i < names.size(); i++) {
+            commit.add(acks.get(i) >= (replica_sets.get(i).contains(this.index) ? 2 : 3));
+        }
+        AtomicIntegerArray commit_acks = new AtomicIntegerArray(names.size());
+        run_batch(work, sessions, (id, session, files) -> {
+            boolean[] committed = session.commit(select(names, files), select(commit, files));
+            for (int k = 0; k < committed.length; k++) {
+                if (committed[k]) {
+                    commit_acks.incrementAndGet(files.get(k));
+                }
+            }
+        });
+        for (BatchConnection session : sessions.values()) {
+            close_quietly(session);
+        }
+
+        int committed = 0;
+        for (int i = 0; i < names.size(); i++) {
+            HashSet<Integer> replicas = replica_sets.get(i);
+            int quorum = replicas.contains(this.index) ? 2 : 3;
+            if (!commit.get(i)) {
+                System.out.println("Put-request failed - not enough replicas stored " + names.get(i));
+                continue;
+            }
+            if (commit_acks.get(i) < quorum) {
+                System.out.println("Put-request failed - not enough replicas committed " + names.get(i));
+                continue;
+            }
+            this.metadata.set_source_path(names.get(i), local_paths.get(i));
+            if (quorum == 2) {
+                local_put(local_paths.get(i), names.get(i), put_timestamp, replicas);
+            } else {
+                this.metadata.set_replicas(names.get(i), replicas);
+            }
+            if (inserts.get(i)) {
+                this.dissemination.publish(names.get(i), replicas);
+            }
+            committed += 1;
+        }
+        long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        System.out.println("Batch put committed " + committed + "/" + names.size() + " files in " + ms + " ms (" + (committed * 1000L / ms) + " files/s)");
+        return recent;
+    }
+
+    // fetch every sdfs file whose name starts with sdfs_prefix into local_dir, named after the rest of its name - one stat command per replica
+    // finds the newest version of each file, then the files are fetched spread over the replicas holding that version, one command per replica
+    private void get_batch(String sdfs_prefix, String local_dir) {
+        long begin = System.nanoTime();
+        TreeMap<String, SDFSFile> files = files_with_prefix(sdfs_prefix);
+        ArrayList<String> names = new ArrayList<String>(files.keySet());
+        ArrayList<String> local_paths = new ArrayList<String>();
+        ArrayList<HashSet<Integer>> replica_sets = new ArrayList<HashSet<Integer>>();
+        for (Map.Entry<String, SDFSFile> e : files.entrySet()) {
+            String rest = e.getKey().substring(sdfs_prefix.length()).replace("/", "-");
+            local_paths.add(Paths.get(local_dir, rest.isEmpty() ? e.getKey().replace("/", "-") : rest).toString());
+            replica_sets.add(e.getValue().getReplicas());
+        }
+
+        // newest version of every file - each replica answers for all its files at once
+        HashMap<Integer, ArrayList<Integer>> work = group_by_replica(replica_sets, true);
+        ConcurrentHashMap<Integer, long[]> versions = new ConcurrentHashMap<Integer, long[]>();
+        ConcurrentHashMap<Integer, BatchConnection> sessions = new ConcurrentHashMap<Integer, BatchConnection>();
+        run_batch(work, sessions, (id, session, indexes) -> versions.put(id, session.stat(select(names, indexes))));
+        int[] responders = new int[names.size()];
+        long[] newest = new long[names.size()];
+        ArrayList<ArrayList<Integer>> holders = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < names.size(); i++) {
+            newest[i] = -1;
+            holders.add(new ArrayList<Integer>());
+        }
+        for (Map.Entry<Integer, long[]> e : versions.entrySet()) {
+            ArrayList<Integer> indexes = work.get(e.getKey());
+            for (int k = 0; k < indexes.size(); k++) {
+                int i = indexes.get(k);
+                long timestamp = e.getValue()[k];
+                responders[i] += 1;
+                if (timestamp > newest[i]) {
+                    newest[i] = timestamp;
+                    holders.get(i).clear();
+                }
+                if (timestamp >= 0 && timestamp == newest[i]) {
+                    holders.get(i).add(e.getKey());
+                }
+            }
+        }
+
+        // version check, then spread the files that still have to be fetched over the replicas holding the newest version
+        int done = 0;
+        int failed = 0;
+        HashMap<Integer, ArrayList<Integer>> fetches = new HashMap<Integer, ArrayList<Integer>>();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            String local_path = local_paths.get(i);
+            SDFSFile local_file = this.metadata.getLocal(name);
+            if (responders[i] < 3 || holders.get(i).isEmpty()) {
+                System.out.println("Get-request failed - not enough replicas responded for " + name);
+                failed += 1;
+            } else if (is_current(name, newest[i], local_path)) {
+                this.version_hits.incrementAndGet();
+                done += 1;
+            } else if (local_file != null && local_file.getTimestamp() >= newest[i] && copy_file(local_file.getLocalFilePath(), local_path)) {
+                this.version_hits.incrementAndGet();
+                record_fetched(name, newest[i], local_path);
+                done += 1;
+            } else if (this.read_cache.copy_to(name, newest[i], local_path)) {
+                record_fetched(name, newest[i], local_path);
+                done += 1;
+            } else {
+                ArrayList<Integer> sources = holders.get(i);
+                fetches.computeIfAbsent(sources.get(i % sources.size()), k -> new ArrayList<Integer>()).add(i);
+            }
+        }
+        AtomicInteger fetched = new AtomicInteger();
+        run_batch(fetches, sessions, (id, session, indexes) -> {
+            boolean[] ok = session.fetch(select(names, indexes), select(local_paths, indexes));
+            for (int k = 0; k < ok.length; k++) {
+                int i = indexes.get(k);
+                if (ok[k]) {
+                    this.read_cache.add(names.get(i), newest[i], local_paths.get(i));
+                    record_fetched(names.get(i), newest[i], local_paths.get(i));
+                    fetched.incrementAndGet();
+                }
+            }
+        });
+        for (BatchConnection session : sessions.values()) {
+            close_quietly(session);
+        }
+        done += fetched.get();
+        long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        System.out.println("Batch get retrieved " + done + "/" + names.size() + " files into " + local_dir + " in " + ms + " ms (" + (done * 1000L / ms) + " files/s)");
+    }
+
+    // copy a local replica to a destination
+    private static boolean copy_file(String from, String to) {
+        try {
+            Files.copy(Paths.get(from), Paths.get(to), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // delete every sdfs file whose name starts with sdfs_prefix - one delete command per replica, and a file is gone once the same quorum
+    // of its replicas as for delete deleted it
+    private void delete_batch(String sdfs_prefix) {
+        long begin = System.nanoTime();
+        TreeMap<String, SDFSFile> files = files_with_prefix(sdfs_prefix);
+        ArrayList<String> names = new ArrayList<String>(files.keySet());
+        ArrayList<HashSet<Integer>> replica_sets = new ArrayList<HashSet<Integer>>();
+        for (SDFSFile f : files.values()) {
+            replica_sets.add(f.getReplicas());
+        }
+        AtomicIntegerArray acks = new AtomicIntegerArray(names.size());
+        ConcurrentHashMap<Integer, BatchConnection> sessions = new ConcurrentHashMap<Integer, BatchConnection>();
+        run_batch(group_by_replica(replica_sets, false), sessions, (id, session, indexes) -> {
+            boolean[] deleted = session.delete(select(names, indexes));
+            for (int k = 0; k < deleted.length; k++) {
+                if (deleted[k]) {
+                    acks.incrementAndGet(indexes.get(k));
+                }
+            }
+        });
+        for (BatchConnection session : sessions.values()) {
+            close_quietly(session);
+        }
+        int committed = 0;
+        for (int i = 0; i < names.size(); i++) {
+            int quorum = replica_sets.get(i).contains(this.index) ? 2 : 3;
+            if (acks.get(i) < quorum) {
+                System.out.println("Delete-request failed - not enough replicas responded for " + names.get(i));
+                continue;
+            }
+            local_delete(names.get(i));
+            this.dissemination.publish(names.get(i), null);
+            committed += 1;
+        }
+        long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        System.out.println("Batch delete removed " + committed + "/" + names.size() + " files in " + ms + " ms (" + (committed * 1000L / ms) + " files/s)");
+    }
+
+    // delete from sdfs - throw if no quorum of the replicas deleted it
+    public void deleteFile(String sdfs_filename) throws SDFSException {
+        check_name(sdfs_filename);
+        HashSet<Integer> replicas = null;
+        int quorum = 3;
+        SDFSFile existing = this.metadata.get(sdfs_filename);
+        if (existing != null) {
+            // existing file -> delete
+            replicas = existing.getReplicas();
+        } else {
+            // file does not exist on the SDFS
+            throw new SDFSException("This file does not exist on the SDFS - " + sdfs_filename);
+        }
+
+        // in case that local machine is also in the list
+        if (replicas.contains(this.index)) {
+            quorum = 2;
+        }
+
+        // send request to delete remotely
+        PendingOperation delete_request = begin_operation("ack-delete", quorum);
+        for (Integer i : replicas) {
+            if (i != this.index) {
+                SDFSMessage msg = new SDFSMessage(SDFSMessage.DELETE, delete_request.getRequestId(), sdfs_filename, 0, null);
+                send_reliable(delete_request, msg, i);
+            }
+        }
+        logger.info("Done sending delete-request to all replicas - ", sdfs_filename);
+
+        // waiting for ACKs
+        if (!await_operation(delete_request, sdfs_filename, "delete", quorum_timeout)) {
+            throw new SDFSException("Delete-request failed - not enough replicas responded for " + sdfs_filename);
+        }
+        logger.info("ACKs are collected meeting the quorum for delete-request - ", sdfs_filename);
+
+        // local delete
+        local_delete(sdfs_filename);
+
+        // broadcast to the all other nodes
+        this.dissemination.publish(sdfs_filename, null);
+        logger.info("Delete-request is successfully executed on the SDFS - ", sdfs_filename);
+    }
+
+    // re-replicate a file to a new node with id
+    private boolean put_rereplicate(int id, String sdfs_filename, long timestamp, HashSet<Integer> replicas) {
+        // construct the message with replica information
+        PendingOperation rerep = begin_operation("ack-rerep", 1);
+        SDFSMessage msg = new SDFSMessage(SDFSMessage.COMMIT_PUT_REREP, rerep.getRequestId(), sdfs_filename, timestamp, replicas);
+        if (send_reliable(rerep, msg, id) == -1) {
+            this.pending_operations.remove(rerep.getRequestId());
+            return false;
+        }
+        logger.info("Done sending re-replicate-request to a new node - ", id, " - ", sdfs_filename);
+
+        // collecting this ack - the new node downloads the file before acking
+        boolean committed = await_operation(rerep, sdfs_filename, "rerep", transfer_timeout);
+        if (committed) {
+            logger.info("ACK is collected for rerep-request - ", sdfs_filename);
+        }
+        return committed;
+    }
+
+    // list all the machines where the file is currently being stored
+    private void listFile(String sdfs_filename) {
+        System.out.println("File Name: " + sdfs_filename);
+        System.out.println("Replicas who store the file: ");
+        SDFSFile f = this.metadata.get(sdfs_filename);
+        if (f == null) {
+            System.out.println("None");
+            return;
+        }
+        int counter = 0;
+        for (Integer i : f.getReplicas()) {
+            System.out.println(this.membershipListMaintainer.getMembership_list().get(i - 1).getIp());
+            counter += 1;
+        }
+        if (counter == 0) {
+            System.out.println("None");
+        }
+    }
+
+    // print latency histograms of the quorum phases
+    private void printStats() {
+        System.out.println("Quorum latency per phase:");
+        if (this.operation_latency.isEmpty()) {
+            System.out.println("None");
+        }
+        for (String phase : new TreeSet<String>(this.operation_latency.keySet())) {
+            System.out.println(" - " + phase + ": " + this.operation_latency.get(phase));
+        }
+        System.out.println("Re-replication: " + this.rereplication);
+        System.out.println("Dissemination: " + this.dissemination);
+        System.out.println("Control message sends: " + this.send_latency + " - " + this.resolver_calls.get() + " address resolutions");
+        System.out.println("Control message reliability: " + this.retransmits.get() + " retransmits, " + this.duplicates.get() + " duplicates suppressed - rto " + rto_summary());
+        System.out.println("Compression: " + (this.compressed_bytes.get() >> 20) + " MB served as " + (this.framed_bytes.get() >> 20) + " MB of frames");
+        System.out.println("File connections: " + this.file_connections);
+        System.out.println("Read cache: " + this.read_cache + " - " + this.version_hits.get() + " gets answered by version check alone");
+        System.out.println("Log: " + this.logger.getDropped() + " lines dropped while the writer was behind, " + this.logger.getDroppedErrors() + " of them errors");
+    }
+
+    // list all files which are currently being stored at this machine
+    private void listStore() {
+        System.out.println("All files stored on this machine:");
+        List<String> files = this.metadata.localFiles();
+        if (files.size() == 0) {
+            System.out.println("None");
+            return;
+        }
+        for (String f : files) {
+            System.out.println(f);
+        }
+    }
+
+    /**
+     * Replica placement policy - decides which nodes (ids from 1) store a file
+     */
+    private interface PlacementStrategy {
+        // up to count distinct active nodes to store a new file
+        HashSet<Integer> initialReplicas(String sdfs_filename, int count);
+
+        // next active node to store the file that is not one of replicas, 0 if there is none
+        int nextReplica(String sdfs_filename, Set<Integer> replicas);
+    }
+
+    /**
+     * Consistent-hash ring with virtual nodes - a file is stored on the first distinct active nodes clockwise from its hash,
+     * so a node joining or leaving only moves the files next to its own points on the ring
+     */
+    private static class ConsistentHashRing implements PlacementStrategy {
+        // points each node owns on the ring (-Dsdfs.vnodes to override)
+        private static final int virtual_nodes = Integer.getInteger("sdfs.vnodes", 128);
+
+        private final IntSupplier cluster_size;
+        private final IntPredicate active;
+
+        // ring built for the current cluster size - replaced when the group grows or shrinks
+        private volatile TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+        private volatile int ring_size = 0;
+
+        ConsistentHashRing(IntSupplier cluster_size, IntPredicate active) {
+            this.cluster_size = cluster_size;
+            this.active = active;
+        }
+
+        @Override
+        public HashSet<Integer> initialReplicas(String sdfs_filename, int count) {
+            HashSet<Integer> replicas = new HashSet<Integer>();
+            for (int id : this.walk(sdfs_filename)) {
+                if (replicas.size() == count) {
+                    break;
+                }
+                if (this.active.test(id)) {
+                    replicas.add(id);
+                }
+            }
+            return replicas;
+        }
+
+        @Override
+        public int nextReplica(String sdfs_filename, Set<Integer> replicas) {
+            for (int id : this.walk(sdfs_filename)) {
+                if (!replicas.contains(id) && this.active.test(id)) {
+                    return id;
+                }
+            }
+            return 0;
+        }
+
+        // distinct node ids in ring order starting from the file's position
+        private LinkedHashSet<Integer> walk(String sdfs_filename) {
+            int size = this.cluster_size.getAsInt();
+            TreeMap<Long, Integer> ring = this.ring_for(size);
+            long h = hash(sdfs_filename);
+            LinkedHashSet<Integer> ids = new LinkedHashSet<Integer>();
+            for (int id : ring.tailMap(h, true).values()) {
+                if (ids.add(id) && ids.size() == size) {
+                    return ids;
+                }
+            }
+            for (int id : ring.headMap(h, false).values()) {
+                if (ids.add(id) && ids.size() == size) {
+                    return ids;
+                }
+            }
+            return ids;
+        }
+
+        private TreeMap<Long, Integer> ring_for(int size) {
+            if (size != this.ring_size) {
+                synchronized (this) {
+                    if (size != this.ring_size) {
+                        TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+                        for (int id = 1; id <= size; id++) {
+                            for (int v = 0; v < virtual_nodes; v++) {
+                                ring.put(hash("node-" + id + "#" + v), id);
+                            }
+                        }
+                        this.ring = ring;
+                        this.ring_size = size;
+                    }
+                }
+            }
+            return this.ring;
+        }
+
+        // 64-bit FNV-1a over the utf-8 bytes, finished with the murmur3 mixer for an even spread
+        private static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xFF;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb3fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /**
+     * Thread-safe metadata of the SDFS files known to this node - the whole sdfs directory, the replicas stored locally
+     * and the local file each sdfs file is served from. Entries are immutable and replaced atomically, and readers
+     * always get their own SDFSFile copy. Writers share a read lock so that snapshots can briefly exclude all of them.
+     * Once a log is opened, every change is also appended to the metadata write-ahead log.
+     */
+    private static class SDFSMetadataStore {
+        private static class Entry {
+            private final String name;
+            private final Set<Integer> replicas; // null when only the source path is known
+            private final long timestamp;
+            private final String local_path; // replica stored on this node, null if this node is not a replica
+            private final boolean local;
+            private final String source_path; // local file sent to nodes requesting the sdfs file
+
+            Entry(String name, Set<Integer> replicas, long timestamp, String local_path, boolean local, String source_path) {
+                this.name = name;
+                this.replicas = replicas == null ? null : Collections.unmodifiableSet(new HashSet<Integer>(replicas));
+                this.timestamp = timestamp;
+                this.local_path = local_path;
+                this.local = local;
+                this.source_path = source_path;
+            }
+
+            SDFSFile toSDFSFile() {
+                return new SDFSFile(this.name, this.local_path, new HashSet<Integer>(this.replicas), this.timestamp);
+            }
+        }
+
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        private final ReentrantReadWriteLock snapshot_lock = new ReentrantReadWriteLock();
+        private volatile MetadataLog log = null;
+
+        // node id -> files whose replicas include the node, and the files stored on this node
+        private final ReplicaIndex index = new ReplicaIndex();
+
+        // per bucket of file names, xor of the hashes of (name, replicas) of its files - equal on nodes that agree on every file in the bucket
+        static final int fingerprint_buckets = 64;
+        private final AtomicLongArray fingerprints = new AtomicLongArray(fingerprint_buckets);
+
+        // atomically replace the entry of a file and log the change - the update returns null to remove it
+        private void update(String name, byte event, Function<Entry, Entry> update) {
+            this.snapshot_lock.readLock().lock();
+            try {
+                this.entries.compute(name, (k, old) -> {
+                    Entry e = update.apply(old);
+                    this.reindex(name, old, e);
+                    MetadataLog log = this.log;
+                    if (log != null && (e != null || old != null)) {
+                        // appended while the entry is locked, so records of one file are logged in order
+                        log.append(event, name, e);
+                    }
+                    return e;
+                });
+            } finally {
+                this.snapshot_lock.readLock().unlock();
+            }
+        }
+
+        // move the file between the node bitmaps of the reverse index and update its fingerprint - called while the entry is locked
+        private void reindex(String name, Entry old, Entry e) {
+            Set<Integer> before = old == null ? null : old.replicas;
+            Set<Integer> after = e == null ? null : e.replicas;
+            this.index.update(name,
+                    before == null ? Collections.<Integer>emptySet() : before,
+                    after == null ? Collections.<Integer>emptySet() : after,
+                    e != null && e.local);
+            if (!Objects.equals(before, after)) {
+                long change = fingerprint(name, before) ^ fingerprint(name, after);
+                this.fingerprints.getAndUpdate(bucket(name), f -> f ^ change);
+            }
+        }
+
+        static int bucket(String name) {
+            return Math.floorMod(name.hashCode(), fingerprint_buckets);
+        }
+
+        private static long fingerprint(String name, Set<Integer> replicas) {
+            if (replicas == null) {
+                return 0;
+            }
+            return ConsistentHashRing.hash(name + "|" + new TreeSet<Integer>(replicas));
+        }
+
+        long[] fingerprints() {
+            long[] buckets = new long[fingerprint_buckets];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = this.fingerprints.get(i);
+            }
+            return buckets;
+        }
+
+        // load the snapshot and replay the log found in dir, then log all further changes there - return the number of records read
+        int open_log(Path dir) throws IOException {
+            Files.createDirectories(dir);
+            MetadataLog log = new MetadataLog(this, dir.resolve("metadata.snapshot"), dir.resolve("metadata.log"));
+            int records = log.recover(this.entries);
+            for (Entry e : this.entries.values()) {
+                this.reindex(e.name, null, e);
+            }
+            log.start();
+            this.log = log;
+            return records;
+        }
+
+        // wait until every change made so far is on disk
+        void sync() {
+            MetadataLog log = this.log;
+            if (log != null) {
+                log.sync();
+            }
+        }
+
+        void close_log() {
+            MetadataLog log = this.log;
+            this.log = null;
+            if (log != null) {
+                log.close();
+            }
+        }
+
+        // file known to the sdfs, null if unknown
+        SDFSFile get(String name) {
+            Entry e = this.entries.get(name);
+            return e == null || e.replicas == null ? null : e.toSDFSFile();
+        }
+
+        // file stored on this node, null if this node is not a replica
+        SDFSFile getLocal(String name) {
+            Entry e = this.entries.get(name);
+            return e == null || !e.local ? null : e.toSDFSFile();
+        }
+
+        boolean isLocal(String name) {
+            Entry e = this.entries.get(name);
+            return e != null && e.local;
+        }
+
+        String getSourcePath(String name) {
+            Entry e = this.entries.get(name);
+            return e == null ? null : e.source_path;
+        }
+
+        // names of the files with a replica on the node - read from the reverse index
+        ArrayList<String> filesOn(int id) {
+            return this.index.filesOn(id);
+        }
+
+        // this node stores a replica of the file at local_path
+        void put_local(String name, String local_path, Set<Integer> replicas, long timestamp) {
+            this.update(name, MetadataLog.LOCAL_PUT, old -> new Entry(name, replicas, timestamp, local_path, true, local_path));
+        }
+
+        // set the replicas of a file, adding it as a remote file if unknown - return the updated file
+        SDFSFile set_replicas(String name, Set<Integer> replicas) {
+            this.update(name, MetadataLog.SET_REPLICAS, old -> old == null
+                    ? new Entry(name, replicas, -1, null, false, null)
+                    : new Entry(name, replicas, old.replicas == null ? -1 : old.timestamp, old.local_path, old.local, old.source_path));
+            return this.get(name);
+        }
+
+        // remember which local file to serve for the sdfs file
+        void set_source_path(String name, String source_path) {
+            this.update(name, MetadataLog.SOURCE_PATH, old -> old == null
+                    ? new Entry(name, null, -1, null, false, source_path)
+                    : new Entry(name, old.replicas, old.timestamp, old.local_path, old.local, source_path));
+        }
+
+        // forget the file - the source path is kept, return whether this node stored a replica of it
+        boolean remove(String name) {
+            boolean[] stored = new boolean[1];
+            this.update(name, MetadataLog.LOCAL_DELETE, old -> {
+                stored[0] = old != null && old.local;
+                return old == null || old.source_path == null
+                        ? null
+                        : new Entry(name, null, -1, null, false, old.source_path);
+            });
+            return stored[0];
+        }
+
+        // forget all files except the replicas and source files still present on disk
+        void retain_local() {
+            this.snapshot_lock.writeLock().lock();
+            try {
+                for (Entry e : this.entries.values()) {
+                    boolean local = e.local && e.local_path != null && new File(e.local_path).exists();
+                    boolean source = e.source_path != null && new File(e.source_path).exists();
+                    if (local || (source && e.replicas == null && !e.local)) {
+                        // nothing to forget
+                        continue;
+                    }
+                    this.update(e.name, MetadataLog.LOCAL_DELETE, old -> old == null || !source
+                            ? null
+                            : new Entry(old.name, null, -1, null, false, old.source_path));
+                }
+            } finally {
+                this.snapshot_lock.writeLock().unlock();
+            }
+        }
+
+        // consistent point-in-time copy of all files known to the sdfs
+        HashMap<String, SDFSFile> snapshot() {
+            HashMap<String, SDFSFile> files = new HashMap<String, SDFSFile>();
+            this.snapshot_lock.writeLock().lock();
+            try {
+                for (Entry e : this.entries.values()) {
+                    if (e.replicas != null) {
+                        files.put(e.name, e.toSDFSFile());
+                    }
+                }
+            } finally {
+                this.snapshot_lock.writeLock().unlock();
+            }
+            return files;
+        }
+
+        // consistent point-in-time copy of every entry, taken while all writers are excluded
+        private ArrayList<Entry> entries_locked() {
+            return new ArrayList<Entry>(this.entries.values());
+        }
+
+        // point-in-time list of the files stored on this node - read from the reverse index
+        List<String> localFiles() {
+            return this.index.localFiles();
+        }
+
+        /**
+         * Reverse index of the metadata - one bitmap over small integer file ids per node id, and one for the files stored on this node
+         * file ids are handed out densely and reused once a file leaves the index, so each bitmap takes about one bit per known file
+         */
+        private static class ReplicaIndex {
+            private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+            private final ArrayList<String> names = new ArrayList<String>(); // file id -> name, null for free ids
+            private final BitSet free = new BitSet();
+            private final ArrayList<BitSet> nodes = new ArrayList<BitSet>(); // node id -> file ids
+            private final BitSet local = new BitSet();
+
+            // the file moved from the nodes in before to the nodes in after - it leaves the index once it has no replicas and is not local
+            synchronized void update(String name, Set<Integer> before, Set<Integer> after, boolean is_local) {
+                boolean indexed = !after.isEmpty() || is_local;
+                Integer id = this.ids.get(name);
+                if (id == null) {
+                    if (!indexed) {
+                        return;
+                    }
+                    id = this.allocate(name);
+                }
+                for (Integer node : before) {
+                    if (!after.contains(node) && node < this.nodes.size()) {
+                        this.nodes.get(node).clear(id);
+                    }
+                }
+                for (Integer node : after) {
+                    while (this.nodes.size() <= node) {
+                        this.nodes.add(new BitSet());
+                    }
+                    this.nodes.get(node).set(id);
+                }
+                this.local.set(id, is_local);
+                if (!indexed) {
+                    this.ids.remove(name);
+                    this.names.set(id, null);
+                    this.free.set(id);
+                }
+            }
+
+            private int allocate(String name) {
+                int id = this.free.nextSetBit(0);
+                if (id < 0) {
+                    id = this.names.size();
+                    this.names.add(name);
+                } else {
+                    this.free.clear(id);
+                    this.names.set(id, name);
+                }
+                this.ids.put(name, id);
+                return id;
+            }
+
+            synchronized ArrayList<String> filesOn(int node) {
+                return node < this.nodes.size() ? this.names(this.nodes.get(node)) : new ArrayList<String>();
+            }
+
+            synchronized ArrayList<String> localFiles() {
+                return this.names(this.local);
+            }
+
+            private ArrayList<String> names(BitSet files) {
+                ArrayList<String> names = new ArrayList<String>(files.cardinality());
+                for (int id = files.nextSetBit(0); id >= 0; id = files.nextSetBit(id + 1)) {
+                    names.add(this.names.get(id));
+                }
+                return names;
+            }
+        }
+
+        /**
+         * Append-only, fsync-batched log of metadata changes with periodic compacted snapshots
+         * record: [payload length (4)][crc32 of payload (8)][payload] - payload: [event (1)][name][present (1)] and, if present,
+         * [replica count (4), -1 for none][replica ids (4 each)][timestamp (8)][local (1)][local path][source path]
+         * strings are [length (4), -1 for null][utf-8 bytes]. A torn or corrupt tail is dropped on recovery.
+         */
+        private static class MetadataLog {
+            // events
+            static final byte SNAPSHOT = 0;
+            static final byte LOCAL_PUT = 1;
+            static final byte LOCAL_DELETE = 2;
+            static final byte SET_REPLICAS = 3;
+            static final byte SOURCE_PATH = 4;
+
+            // the log is compacted into a snapshot once it grows past this size (bytes)
+            private static final long compact_threshold = Long.getLong("sdfs.metadata_log_size", 16 * 1024 * 1024);
+
+            private final SDFSMetadataStore store;
+            private final Path snapshot_path;
+            private final Path log_path;
+            private FileChannel log;
+
+            // records waiting to be written and sequence numbers of appended / durable records - guarded by this
+            private ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+            private long appended = 0;
+            private long flushed = 0;
+            private boolean closed = false;
+
+            private Thread writer;
+
+            MetadataLog(SDFSMetadataStore store, Path snapshot_path, Path log_path) {
+                this.store = store;
+                this.snapshot_path = snapshot_path;
+                this.log_path = log_path;
+            }
+
+            // rebuild the entries from the snapshot and the log - return the number of records read
+            int recover(Map<String, Entry> entries) throws IOException {
+                int records = 0;
+                if (Files.exists(this.snapshot_path)) {
+                    records += this.replay(this.snapshot_path, entries);
+                }
+                this.log = FileChannel.open(this.log_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                records += this.replay(this.log_path, entries);
+                return records;
+            }
+
+            // apply all valid records of a file - a log is truncated after its last valid record
+            private int replay(Path path, Map<String, Entry> entries) throws IOException {
+                int records = 0;
+                ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+                while (buf.remaining() >= 12) {
+                    int start = buf.position();
+                    int length = buf.getInt();
+                    long crc = buf.getLong();
+                    if (length <= 0 || length > buf.remaining()) {
+                        buf.position(start);
+                        break;
+                    }
+                    CRC32 check = new CRC32();
+                    check.update(buf.array(), buf.position(), length);
+                    if (check.getValue() != crc) {
+                        buf.position(start);
+                        break;
+                    }
+                    ByteBuffer payload = ByteBuffer.wrap(buf.array(), buf.position(), length);
+                    buf.position(buf.position() + length);
+                    payload.get(); // event
+                    String name = get_string(payload);
+                    Entry e = decode_entry(name, payload);
+                    if (e == null) {
+                        entries.remove(name);
+                    } else {
+                        entries.put(name, e);
+                    }
+                    records += 1;
+                }
+                if (path.equals(this.log_path)) {
+                    this.log.truncate(buf.position());
+                    this.log.position(buf.position());
+                }
+                return records;
+            }
+
+            void start() {
+                this.writer = new Thread(this::write_loop, "metadata-log-writer");
+                this.writer.setDaemon(true);
+                this.writer.start();
+            }
+
+            // queue a record - it reaches the disk with the next batch
+            synchronized void append(byte event, String name, Entry e) {
+                this.pending.add(frame(encode(event, name, e)));
+                this.appended += 1;
+                this.notifyAll();
+            }
+
+            // block until every record appended so far has been fsynced
+            synchronized void sync() {
+                long target = this.appended;
+                while (this.flushed < target && !this.closed) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            void close() {
+                synchronized (this) {
+                    this.closed = true;
+                    this.notifyAll();
+                }
+                try {
+                    this.writer.join();
+                    this.log.close();
+                } catch (InterruptedException | IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // group commit - everything appended while the previous batch was being fsynced goes out in one write + fsync
+            private void write_loop() {
+                while (true) {
+                    synchronized (this) {
+                        while (this.pending.isEmpty() && !this.closed) {
+                            try {
+                                this.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        if (this.pending.isEmpty() && this.closed) {
+                            return;
+                        }
+                    }
+                    try {
+                        this.flush();
+                        if (this.log.size() > compact_threshold) {
+                            this.compact();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            // write and fsync the pending records
+            private void flush() throws IOException {
+                ArrayList<ByteBuffer> batch;
+                long sequence;
+                synchronized (this) {
+                    batch = this.pending;
+                    sequence = this.appended;
+                    this.pending = new ArrayList<ByteBuffer>();
+                }
+                if (!batch.isEmpty()) {
+                    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                    long remaining = 0;
+                    for (ByteBuffer b : buffers) {
+                        remaining += b.remaining();
+                    }
+                    while (remaining > 0) {
+                        remaining -= this.log.write(buffers);
+                    }
+                    this.log.force(false);
+                }
+                synchronized (this) {
+                    this.flushed = sequence;
+                    this.notifyAll();
+                }
+            }
+
+            // write all entries into a new snapshot and start an empty log
+            private void compact() throws IOException {
+                ArrayList<Entry> entries;
+                this.store.snapshot_lock.writeLock().lock();
+                try {
+                    // no change can be made now - the log on disk is complete and matches the copied entries
+                    this.flush();
+                    entries = this.store.entries_locked();
+                } finally {
+                    this.store.snapshot_lock.writeLock().unlock();
+                }
+
+                Path tmp = this.snapshot_path.resolveSibling(this.snapshot_path.getFileName() + ".tmp");
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    for (Entry e : entries) {
+                        ByteBuffer record = frame(encode(SNAPSHOT, e.name, e));
+                        while (record.hasRemaining()) {
+                            out.write(record);
+                        }
+                    }
+                    out.force(true);
+                } finally {
+                    out.close();
+                }
+                Files.move(tmp, this.snapshot_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                // records written after the copy are still pending, so the old log can go
+                this.log.truncate(0);
+                this.log.position(0);
+                this.log.force(true);
+            }
+
+            // prefix the payload with its length and crc32
+            private static ByteBuffer frame(ByteBuffer payload) {
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, payload.limit());
+                ByteBuffer record = ByteBuffer.allocate(12 + payload.limit());
+                record.putInt(payload.limit()).putLong(crc.getValue()).put(payload).flip();
+                return record;
+            }
+
+            private static ByteBuffer encode(byte event, String name, Entry e) {
+                byte[] name_bytes = name.getBytes(StandardCharsets.UTF_8);
+                byte[] local_path = e == null || e.local_path == null ? null : e.local_path.getBytes(StandardCharsets.UTF_8);
+                byte[] source_path = e == null || e.source_path == null ? null : e.source_path.getBytes(StandardCharsets.UTF_8);
+                int size = 1 + 4 + name_bytes.length + 1;
+                if (e != null) {
+                    size += 4 + (e.replicas == null ? 0 : 4 * e.replicas.size()) + 8 + 1
+                            + 4 + (local_path == null ? 0 : local_path.length) + 4 + (source_path == null ? 0 : source_path.length);
+                }
+                ByteBuffer buf = ByteBuffer.allocate(size);
+                buf.put(event);
+                put_string(buf, name_bytes);
+                buf.put((byte) (e == null ? 0 : 1));
+                if (e != null) {
+                    if (e.replicas == null) {
+                        buf.putInt(-1);
+                    } else {
+                        buf.putInt(e.replicas.size());
+                        for (int id : e.replicas) {
+                            buf.putInt(id);
+                        }
+                    }
+                    buf.putLong(e.timestamp);
+                    buf.put((byte) (e.local ? 1 : 0));
+                    put_string(buf, local_path);
+                    put_string(buf, source_path);
+                }
+                buf.flip();
+                return buf;
+            }
+
+            private static Entry decode_entry(String name, ByteBuffer buf) {
+                if (buf.get() == 0) {
+                    return null;
+                }
+                int count = buf.getInt();
+                HashSet<Integer> replicas = null;
+                if (count >= 0) {
+                    replicas = new HashSet<Integer>();
+                    for (int i = 0; i < count; i++) {
+                        replicas.add(buf.getInt());
+                    }
+                }
+                long timestamp = buf.getLong();
+                boolean local = buf.get() == 1;
+                String local_path = get_string(buf);
+                String source_path = get_string(buf);
+                return new Entry(name, replicas, timestamp, local_path, local, source_path);
+            }
+
+            private static void put_string(ByteBuffer buf, byte[] bytes) {
+                if (bytes == null) {
+                    buf.putInt(-1);
+                } else {
+                    buf.putInt(bytes.length).put(bytes);
+                }
+            }
+
+            private static String get_string(ByteBuffer buf) {
+                int length = buf.getInt();
+                if (length < 0) {
+                    return null;
+                }
+                String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+                buf.position(buf.position() + length);
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Control message exchanged between SDFS nodes over UDP - the sender is identified by the packet's source address
+     * wire format: [version (1)][opcode (1)][request id (8)][timestamp (8)][name length (varint)][name (utf-8)][replica count (varint)][replica ids (varint)]
+     *              [payload length (varint)][payload] - the payload carries the batches of digest and summary messages, empty otherwise
+     */
+    private static class SDFSMessage {
+        static final byte VERSION = 2;
+
+        // largest encoded message
+        static final int MAX_SIZE = 8192;
+
+        // longest file name (utf-8 bytes) - leaves room for the header and the replica ids
+        static final int MAX_NAME_SIZE = MAX_SIZE - 256;
+
+        // opcodes
+        static final byte PUT = 1;
+        static final byte ACK_PUT = 2;
+        static final byte COMMIT_PUT = 3;
+        static final byte ACK_PUT_COMMIT = 4;
+        static final byte GET = 5;
+        static final byte ACK_GET = 6;
+        static final byte DELETE = 7;
+        static final byte ACK_DELETE = 8;
+        static final byte BROADCAST_INSERT = 9;
+        static final byte BROADCAST_DELETE = 10;
+        static final byte BROADCAST_UPDATE = 11;
+        static final byte COMMIT_PUT_REREP = 12;
+        static final byte ACK_REREP = 13;
+        static final byte DIGEST = 14;
+        static final byte SUMMARY = 15;
+
+        private static final String[] NAMES = {"?", "put", "ack-put", "commit-put", "ack-put-commit", "get", "ack-get", "delete",
+                "ack-delete", "broadcast-insert", "broadcast-delete", "broadcast-update", "commit-put-rerep", "ack-rerep", "digest", "summary"};
+
+        private byte opcode;
+        private long request_id;
+        private long timestamp;
+        private String name;
+        private int[] replicas = new int[8];
+        private int replica_count = 0;
+        private byte[] payload = new byte[0];
+        private int payload_length = 0;
+
+        // empty message to decode into
+        SDFSMessage() {
+        }
+
+        SDFSMessage(byte opcode, long request_id, String name, long timestamp, Collection<Integer> replicas) {
+            this.opcode = opcode;
+            this.request_id = request_id;
+            this.name = name;
+            this.timestamp = timestamp;
+            if (replicas != null) {
+                this.replicas = new int[replicas.size()];
+                for (int id : replicas) {
+                    this.replicas[this.replica_count++] = id;
+                }
+            }
+        }
+
+        // encode into the buffer from its start - the buffer is left ready to be read, and empty if the message does not fit (return false)
+        boolean encode(ByteBuffer buf) {
+            buf.clear();
+            try {
+                buf.put(VERSION).put(this.opcode).putLong(this.request_id).putLong(this.timestamp);
+                byte[] name_bytes = this.name.getBytes(StandardCharsets.UTF_8);
+                put_varint(buf, name_bytes.length);
+                buf.put(name_bytes);
+                put_varint(buf, this.replica_count);
+                for (int i = 0; i < this.replica_count; i++) {
+                    put_varint(buf, this.replicas[i]);
+                }
+                put_varint(buf, this.payload_length);
+                buf.put(this.payload, 0, this.payload_length);
+            } catch (BufferOverflowException e) {
+                buf.clear().flip();
+                return false;
+            }
+            buf.flip();
+            return true;
+        }
+
+        // decode the remaining bytes of the buffer into this message - return false if the message is malformed or of another version
+        boolean decode(ByteBuffer buf) {
+            try {
+                if (buf.get() != VERSION) {
+                    return false;
+                }
+                this.opcode = buf.get();
+                this.request_id = buf.getLong();
+                this.timestamp = buf.getLong();
+                int name_length = get_varint(buf);
+                if (name_length > buf.remaining()) {
+                    return false;
+                }
+                this.name = new String(buf.array(), buf.arrayOffset() + buf.position(), name_length, StandardCharsets.UTF_8);
+                buf.position(buf.position() + name_length);
+                int count = get_varint(buf);
+                if (count > buf.remaining()) {
+                    return false;
+                }
+                if (count > this.replicas.length) {
+                    this.replicas = new int[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    this.replicas[i] = get_varint(buf);
+                }
+                this.replica_count = count;
+                int payload_length = get_varint(buf);
+                if (payload_length > buf.remaining()) {
+                    return false;
+                }
+                if (payload_length > this.payload.length) {
+                    this.payload = new byte[payload_length];
+                }
+                buf.get(this.payload, 0, payload_length);
+                this.payload_length = payload_length;
+            } catch (BufferUnderflowException e) {
+                return false;
+            }
+            return this.opcode > 0 && this.opcode < NAMES.length;
+        }
+
+        // unsigned LEB128 - 7 bits per byte, high bit set on all but the last byte
+        private static void put_varint(ByteBuffer buf, int value) {
+            while ((value & ~0x7F) != 0) {
+                buf.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buf.put((byte) value);
+        }
+
+        private static int get_varint(ByteBuffer buf) {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buf.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new BufferUnderflowException();
+        }
+
+        // copy that stays valid after this message is decoded into again
+        SDFSMessage copy() {
+            SDFSMessage copy = new SDFSMessage(this.opcode, this.request_id, this.name, this.timestamp, null);
+            copy.replicas = Arrays.copyOf(this.replicas, this.replica_count);
+            copy.replica_count = this.replica_count;
+            copy.payload = Arrays.copyOf(this.payload, this.payload_length);
+            copy.payload_length = this.payload_length;
+            return copy;
+        }
+
+        // attach the remaining bytes of the buffer as the payload
+        SDFSMessage withPayload(ByteBuffer buf) {
+            this.payload_length = buf.remaining();
+            this.payload = new byte[this.payload_length];
+            buf.get(this.payload);
+            return this;
+        }
+
+        ByteBuffer getPayload() {
+            return ByteBuffer.wrap(this.payload, 0, this.payload_length);
+        }
+
+        // requests are retransmitted by their sender until acked
+        boolean isRequest() {
+            return this.opcode == PUT || this.opcode == COMMIT_PUT || this.opcode == GET
+                    || this.opcode == DELETE || this.opcode == COMMIT_PUT_REREP;
+        }
+
+        boolean isAck() {
+            return this.opcode == ACK_PUT || this.opcode == ACK_PUT_COMMIT || this.opcode == ACK_GET
+                    || this.opcode == ACK_DELETE || this.opcode == ACK_REREP;
+        }
+
+        byte getOpcode() {
+            return this.opcode;
+        }
+
+        long getRequestId() {
+            return this.request_id;
+        }
+
+        long getTimestamp() {
+            return this.timestamp;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        HashSet<Integer> getReplicaSet() {
+            HashSet<Integer> set = new HashSet<Integer>();
+            for (int i = 0; i < this.replica_count; i++) {
+                set.add(this.replicas[i]);
+            }
+            return set;
+        }
+
+        @Override
+        public String toString() {
+            return NAMES[this.opcode] + " #" + this.request_id + " - " + this.name;
+        }
+    }
+
+    /**
+     * Content-addressed block list of one file - block i covers bytes [i * block size, min(length, (i + 1) * block size)) and is named by its sha-256
+     * encoded as [file length (8 bytes)][block size (4 bytes)][block count (4 bytes)][sha-256 of each block (32 bytes each)]
+     */
+    private static class BlockManifest {
+        private static final int hash_size = 32;
+
+        private final long length;
+        private final int block_size;
+        private final byte[][] hashes;
+        // modification time of the local file the manifest describes, 0 if received from a peer
+        private final long modified;
+
+        private BlockManifest(long length, int block_size, byte[][] hashes, long modified) {
+            this.length = length;
+            this.block_size = block_size;
+            this.hashes = hashes;
+            this.modified = modified;
+        }
+
+        // hash every block of the file - each block is read through a memory-mapped region
+        static BlockManifest compute(FileChannel f, int block_size, long modified) throws IOException {
+            long length = f.size();
+            byte[][] hashes = new byte[(int) ((length + block_size - 1) / block_size)][];
+            for (int i = 0; i < hashes.length; i++) {
+                long offset = (long) i * block_size;
+                hashes[i] = digest(f.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(block_size, length - offset)));
+            }
+            return new BlockManifest(length, block_size, hashes, modified);
+        }
+
+        static byte[] digest(ByteBuffer block) {
+            try {
+                MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                sha.update(block);
+                return sha.digest();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // the same manifest describing a local file modified at the given time
+        BlockManifest stamped(long modified) {
+            return new BlockManifest(this.length, this.block_size, this.hashes, modified);
+        }
+
+        ByteBuffer encode() {
+            ByteBuffer buf = ByteBuffer.allocate(16 + this.hashes.length * hash_size);
+            buf.putLong(this.length).putInt(this.block_size).putInt(this.hashes.length);
+            for (byte[] hash : this.hashes) {
+                buf.put(hash);
+            }
+            buf.flip();
+            return buf;
+        }
+
+        static BlockManifest decode(ByteBuffer buf) throws IOException {
+            try {
+                long length = buf.getLong();
+                int block_size = buf.getInt();
+                int count = buf.getInt();
+                if (length < 0 || block_size <= 0 || count != (length + block_size - 1) / block_size || buf.remaining() != count * hash_size) {
+                    throw new IOException("malformed block manifest");
+                }
+                byte[][] hashes = new byte[count][hash_size];
+                for (byte[] hash : hashes) {
+                    buf.get(hash);
+                }
+                return new BlockManifest(length, block_size, hashes, 0);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("truncated block manifest", e);
+            }
+        }
+
+        long getLength() {
+            return this.length;
+        }
+
+        long getModified() {
+            return this.modified;
+        }
+
+        int count() {
+            return this.hashes.length;
+        }
+
+        byte[] hash(int i) {
+            return this.hashes[i];
+        }
+
+        long offset(int i) {
+            return (long) i * this.block_size;
+        }
+
+        int blockLength(int i) {
+            return (int) Math.min(this.block_size, this.length - this.offset(i));
+        }
+    }
+
+    /**
+     * Failure of an operation on the SDFS - the message says which step failed and for which file
+     */
+    public static class SDFSException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SDFSException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Put refused because the file was updated within the last minute - putFile with overwrite_recent updates it anyway
+     */
+    public static class RecentUpdateException extends SDFSException {
+        private static final long serialVersionUID = 1L;
+        private final long timestamp;
+
+        public RecentUpdateException(String sdfs_filename, long timestamp) {
+            super("This file has been updated within 1 minute - " + sdfs_filename);
+            this.timestamp = timestamp;
+        }
+
+        // time of the previous update
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+    }
+
+    /**
+     * A quorum operation waiting for ACKs - the ReceiverThread records each ACK and the caller wakes up as soon as the quorum is met
+     */
+    private static class PendingOperation {
+        private final long request_id;
+        private final String ack_type;
+        private final int quorum;
+        private int acks = 0;
+        private long max_timestamp = 0;
+        private String max_ip = null;
+        private final ArrayList<String> max_ips = new ArrayList<String>();
+        private final HashSet<String> responders = new HashSet<String>();
+        // last send of the request to each peer, and peers it was retransmitted to - their acks are ambiguous for rtt sampling
+        private final HashMap<String, Long> sent_at = new HashMap<String, Long>();
+        private final HashSet<String> retransmitted = new HashSet<String>();
+
+        PendingOperation(long request_id, String ack_type, int quorum) {
+            this.request_id = request_id;
+            this.ack_type = ack_type;
+            this.quorum = quorum;
+        }
+
+        // record an ACK carrying the responder's timestamp of the file - a node counts once towards the quorum
+        synchronized void ack(String ip, long timestamp) {
+            if (!this.responders.add(ip)) {
+                return;
+            }
+            this.acks += 1;
+            if (this.max_ip == null || timestamp > this.max_timestamp) {
+                this.max_ip = ip;
+                this.max_timestamp = timestamp;
+                this.max_ips.clear();
+            }
+            if (timestamp == this.max_timestamp) {
+                this.max_ips.add(ip);
+            }
+            if (this.acks >= this.quorum) {
+                this.notifyAll();
+            }
+        }
+
+        // record a send of the request to ip (System.nanoTime)
+        synchronized void sent(String ip, long time, boolean retransmission) {
+            this.sent_at.put(ip, time);
+            if (retransmission) {
+                this.retransmitted.add(ip);
+            }
+        }
+
+        synchronized boolean hasAcked(String ip) {
+            return this.responders.contains(ip);
+        }
+
+        // time from sending the request to ip until now (ns) - -1 if it was retransmitted, as the ack may answer any of the sends
+        synchronized long roundTrip(String ip) {
+            Long time = this.sent_at.get(ip);
+            if (time == null || this.retransmitted.contains(ip)) {
+                return -1;
+            }
+            return System.nanoTime() - time;
+        }
+
+        // block until the quorum is met - return false if the timeout (ms) expires first
+        synchronized boolean await(long timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (this.acks < this.quorum) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        long getRequestId() {
+            return this.request_id;
+        }
+
+        String getAckType() {
+            return this.ack_type;
+        }
+
+        synchronized int getAcks() {
+            return this.acks;
+        }
+
+        int getQuorum() {
+            return this.quorum;
+        }
+
+        synchronized long getMaxTimestamp() {
+            return this.max_timestamp;
+        }
+
+        synchronized String getMaxIp() {
+            return this.max_ip;
+        }
+
+        // every responder holding the newest timestamp seen so far
+        synchronized List<String> getMaxIps() {
+            return new ArrayList<String>(this.max_ips);
+        }
+    }
+
+    /**
+     * Log with a lock-free ring buffer between the logging threads and a single writer
+     * a line is passed as its parts and only concatenated by the writer - a line below the level is never built
+     */
+    private static class AsyncLogger {
+        static final int DEBUG = 0;
+        static final int INFO = 1;
+        static final int ERROR = 2;
+
+        // most lines written per wake-up of the writer, and how long it sleeps once the buffer is empty (ms)
+        private static final int batch_size = 256;
+        private static final long idle_wait = 1;
+
+        private final MembershipListMaintainer out;
+        private final int level;
+        private final int mask;
+        private final Object[][] lines;
+        // sequence + 1 of the line held by each slot once it is fully stored
+        private final AtomicLongArray published;
+        // next sequence to claim by a logging thread, and next sequence to write by the writer
+        private final AtomicLong claimed = new AtomicLong();
+        private volatile long written = 0;
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong dropped_errors = new AtomicLong();
+        private Thread writer;
+
+        AsyncLogger(MembershipListMaintainer out, int level, int capacity) {
+            this.out = out;
+            this.level = level;
+            this.mask = capacity - 1;
+            this.lines = new Object[capacity][];
+            this.published = new AtomicLongArray(capacity);
+        }
+
+        // level of a name - DEBUG, INFO or ERROR
+        static int level(String name) {
+            switch (name.toUpperCase()) {
+                case "ERROR":
+                    return ERROR;
+                case "INFO":
+                    return INFO;
+                default:
+                    return DEBUG;
+            }
+        }
+
+        void start() {
+            this.writer = new Thread(this::write_loop, "log-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        boolean enabled(int level) {
+            return level >= this.level;
+        }
+
+        void debug(Object... parts) {
+            if (DEBUG >= this.level) {
+                this.append(DEBUG, parts);
+            }
+        }
+
+        void info(Object... parts) {
+            if (INFO >= this.level) {
+                this.append(INFO, parts);
+            }
+        }
+
+        void error(Object... parts) {
+            if (ERROR >= this.level) {
+                this.append(ERROR, parts);
+            }
+        }
+
+        // claim the next slot and store the line in it - a full buffer drops the line whatever its level, as writing it here would
+        // put it ahead of the queued lines and block the caller on the log file
+        private void append(int level, Object[] parts) {
+            long sequence;
+            do {
+                sequence = this.claimed.get();
+                if (sequence - this.written > this.mask) {
+                    this.dropped.incrementAndGet();
+                    if (level == ERROR) {
+                        this.dropped_errors.incrementAndGet();
+                    }
+                    return;
+                }
+            } while (!this.claimed.compareAndSet(sequence, sequence + 1));
+            int slot = (int) (sequence & this.mask);
+            this.lines[slot] = parts;
+            this.published.lazySet(slot, sequence + 1);
+        }
+
+        private static String format(Object[] parts) {
+            if (parts.length == 1) {
+                return String.valueOf(parts[0]);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Object part : parts) {
+                sb.append(part);
+            }
+            return sb.toString();
+        }
+
+        // write the lines published in order - return the number written
+        private int drain(int limit) {
+            long sequence = this.written;
+            int count = 0;
+            while (count < limit) {
+                int slot = (int) (sequence & this.mask);
+                if (this.published.get(slot) != sequence + 1) {
+                    break;
+                }
+                Object[] parts = this.lines[slot];
+                this.lines[slot] = null;
+                this.out.log(format(parts));
+                sequence += 1;
+                count += 1;
+            }
+            this.written = sequence;
+            return count;
+        }
+
+        private void write_loop() {
+            while (true) {
+                if (this.drain(batch_size) == 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idle_wait));
+                }
+            }
+        }
+
+        // wait until every line queued so far is written
+        void flush() {
+            long target = this.claimed.get();
+            while (this.written < target && this.writer != null && this.writer.isAlive()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idle_wait));
+            }
+        }
+
+        long getDropped() {
+            return this.dropped.get();
+        }
+
+        long getDroppedErrors() {
+            return this.dropped_errors.get();
+        }
+    }
+
+    /**
+     * Request received by the ReceiverThread - time of arrival (ms) and the reply sent for it, null while it is being handled
+     */
+    private static class Delivery {
+        private final long received;
+        private volatile SDFSMessage reply = null;
+
+        Delivery(long received) {
+            this.received = received;
+        }
+    }
+
+    /**
+     * Tasks run one at a time per key in submission order, each on the executor it was submitted with - tasks of different keys run in parallel
+     * a key whose task waits holds no thread, so a long task only holds up the later tasks of its own key
+     */
+    private static class SerialQueues {
+        private final HashMap<String, ArrayDeque<Runnable>> queues = new HashMap<String, ArrayDeque<Runnable>>();
+        private final int capacity;
+        private int pending = 0;
+
+        SerialQueues(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // queue a task behind the tasks of its key - return false, without queueing it, if capacity tasks are already pending
+        synchronized boolean submit(String key, Executor executor, Runnable task) {
+            if (this.pending >= this.capacity) {
+                return false;
+            }
+            this.pending += 1;
+            Runnable step = () -> {
+                try {
+                    task.run();
+                } finally {
+                    this.next(key);
+                }
+            };
+            ArrayDeque<Runnable> queue = this.queues.get(key);
+            if (queue == null) {
+                this.queues.put(key, new ArrayDeque<Runnable>());
+                executor.execute(step);
+            } else {
+                queue.addLast(() -> executor.execute(step));
+            }
+            return true;
+        }
+
+        // start the next task of the key once its previous one is done
+        private synchronized void next(String key) {
+            this.pending -= 1;
+            ArrayDeque<Runnable> queue = this.queues.get(key);
+            Runnable start = queue.pollFirst();
+            if (start == null) {
+                this.queues.remove(key);
+            } else {
+                start.run();
+            }
+        }
+    }
+
+    /**
+     * Retransmission timeout towards one peer - smoothed rtt and rtt variance as in RFC 6298
+     */
+    private static class RttEstimator {
+        private double srtt = -1;
+        private double rttvar = 0;
+
+        // add a round trip (ms) measured on a request that was not retransmitted
+        synchronized void sample(double rtt) {
+            if (this.srtt < 0) {
+                this.srtt = rtt;
+                this.rttvar = rtt / 2;
+            } else {
+                this.rttvar = 0.75 * this.rttvar + 0.25 * Math.abs(this.srtt - rtt);
+                this.srtt = 0.875 * this.srtt + 0.125 * rtt;
+            }
+        }
+
+        // timeout (ms) before a request is retransmitted
+        synchronized long rto() {
+            if (this.srtt < 0) {
+                return initial_rto;
+            }
+            long rto = (long) Math.ceil(this.srtt + Math.max(1, 4 * this.rttvar));
+            return Math.max(min_rto, Math.min(max_rto, rto));
+        }
+    }
+
+    /**
+     * Latency histogram with power-of-two millisecond buckets - bucket i holds latencies below 2^i ms
+     */
+    private static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(32);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final String unit;
+
+        LatencyHistogram() {
+            this("ms");
+        }
+
+        LatencyHistogram(String unit) {
+            this.unit = unit;
+        }
+
+        // record one sample, in the unit of the histogram
+        void record(long value) {
+            int bucket = value <= 0 ? 0 : Math.min(31, 64 - Long.numberOfLeadingZeros(value));
+            this.buckets.incrementAndGet(bucket);
+            this.count.incrementAndGet();
+            this.total.addAndGet(value);
+        }
+
+        void record_timeout() {
+            this.timeouts.incrementAndGet();
+        }
+
+        // upper bound of the bucket containing the given percentile
+        long percentile(double p) {
+            long target = (long) Math.ceil(this.count.get() * p);
+            long seen = 0;
+            for (int i = 0; i < this.buckets.length(); i++) {
+                seen += this.buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long n = this.count.get();
+            return "count=" + n + " mean=" + (n == 0 ? 0 : this.total.get() / n) + this.unit + " p50<" + this.percentile(0.5)
+                    + this.unit + " p99<" + this.percentile(0.99) + this.unit + " timeouts=" + this.timeouts.get();
+        }
+    }
+
+    /**
+     * Membership List Maintainer thread providing membership protocol service to the SDFS
+     */
+    private class MembershipListMaintainerThread extends Thread {
+        @Override
+        public void run() {
+            SDFSServer.this.membershipListMaintainer.start();
+        }
+    }
+
+    /**
+     * Receiver thread watching on port 5001 for receiving messages through UDP
+     * Messages are SDFSMessage datagrams - responses echo the request id of the message they answer
+     */
+    private class ReceiverThread extends Thread {
+        // packet buffer and message decoded from it - reused for every packet
+        private final ByteBuffer data = ByteBuffer.allocate(SDFSMessage.MAX_SIZE);
+        private final DatagramPacket packet = new DatagramPacket(this.data.array(), this.data.capacity());
+        private final SDFSMessage message = new SDFSMessage();
+
+        // messages about the same file are handled one at a time in arrival order - commits, which fetch the file, on the transfer threads
+        // and everything else on the workers, so a long fetch only holds up later messages about its own file
+        private final ExecutorService workers = Executors.newFixedThreadPool(receiver_workers);
+        private final ExecutorService transfers = Executors.newFixedThreadPool(receiver_transfer_threads);
+        private final SerialQueues queues = new SerialQueues(receiver_queue_size);
+
+        // requests received within the dedup window by request id, with the reply sent for them - and their ids in arrival order
+        private final ConcurrentHashMap<Long, Delivery> deliveries = new ConcurrentHashMap<Long, Delivery>();
+        private final ArrayDeque<Long> delivery_order = new ArrayDeque<Long>();
+
+        @Override
+        public void run() {
+            while (!SDFSServer.this.membershipListMaintainer.getShouldExit()) {
+                if (SDFSServer.this.membershipListMaintainer.getStatus() != 1) {
+                    continue;
+                }
+                // get UDP message
+                this.packet.setLength(this.data.capacity());
+                try {
+                    udp_socket.receive(this.packet);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                this.data.clear();
+                this.data.limit(this.packet.getLength());
+                if (!this.message.decode(this.data)) {
+                    logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Dropped malformed message from ", this.packet.getAddress());
+                    continue;
+                }
+
+                // if the node is idle, skip the receiver
+                if (SDFSServer.this.membershipListMaintainer.getStatus() != 1) {
+                    continue;
+                }
+                final String ip = this.packet.getAddress().getHostAddress();
+                if (this.message.isRequest() && this.duplicate(this.message.getRequestId(), ip)) {
+                    continue;
+                }
+                if (this.message.isAck()) {
+                    // acks only wake up waiting operations - never queue them behind file transfers
+                    this.handle(this.message, ip);
+                } else {
+                    // requests may block on a file transfer - queue them behind the messages about the same file
+                    final SDFSMessage request = this.message.copy();
+                    boolean transfer = request.getOpcode() == SDFSMessage.COMMIT_PUT || request.getOpcode() == SDFSMessage.COMMIT_PUT_REREP;
+                    if (!this.queues.submit(request.getName(), transfer ? this.transfers : this.workers, () -> this.handle(request, ip))) {
+                        // never wait here, the acks behind would wait too - the sender retransmits a dropped request, and it is handled then
+                        logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Dropped message from ", ip, ", too many waiting - ", request.getName());
+                        this.forget(request.getRequestId());
+                    }
+                }
+            }
+
+            this.workers.shutdown();
+            this.transfers.shutdown();
+        }
+
+        // check a received request against the ones already delivered - a retransmission is answered with the reply sent
+        // for the original, or dropped while the original is still being handled - called by chain transfers as well
+        private synchronized boolean duplicate(long request_id, String ip) {
+            long now = System.currentTimeMillis();
+            while (!this.delivery_order.isEmpty()) {
+                Delivery oldest = this.deliveries.get(this.delivery_order.peekFirst());
+                if (oldest != null && now - oldest.received < dedup_window) {
+                    break;
+                }
+                Long expired = this.delivery_order.pollFirst();
+                if (oldest != null) {
+                    this.deliveries.remove(expired, oldest);
+                }
+            }
+            Delivery delivery = this.deliveries.get(request_id);
+            if (delivery == null) {
+                this.deliveries.put(request_id, new Delivery(now));
+                this.delivery_order.addLast(request_id);
+                return false;
+            }
+            duplicates.incrementAndGet();
+            SDFSMessage reply = delivery.reply;
+            if (reply != null) {
+                send_msg(udp_socket, reply, ip);
+            }
+            return true;
+        }
+
+        // send the ack of a request and remember it for retransmissions of the request
+        private void reply(SDFSMessage ack, String ip) {
+            this.remember(ack);
+            send_msg(udp_socket, ack, ip);
+        }
+
+        private void remember(SDFSMessage ack) {
+            Delivery delivery = this.deliveries.get(ack.getRequestId());
+            if (delivery != null) {
+                delivery.reply = ack;
+            }
+        }
+
+        // forget a request that failed without reply, so that a retransmission of it is handled again
+        private void forget(long request_id) {
+            this.deliveries.remove(request_id);
+        }
+
+        // handle one message received from ip
+        private void handle(SDFSMessage message, String ip) {
+            long request_id = message.getRequestId();
+            String file_name = message.getName();
+            switch (message.getOpcode()) {
+                case SDFSMessage.PUT: {
+                    logger.debug("Received put request from ", ip, " - ", file_name);
+                    // put-request / re-replicate-request
+                    // response contains a timestamp of file
+                    long file_timestamp = 0;
+                    SDFSFile local_file = metadata.getLocal(file_name);
+                    if (local_file != null) {
+                        file_timestamp = local_file.getTimestamp();
+                    }
+                    this.reply(new SDFSMessage(SDFSMessage.ACK_PUT, request_id, file_name, file_timestamp, null), ip);
+                    logger.debug("Sent back ack-put to ", ip, " - ", file_name);
+                    break;
+                }
+                case SDFSMessage.COMMIT_PUT: {
+                    logger.debug("Received commit-put from ", ip, " - ", file_name);
+                    // replica information
+                    HashSet<Integer> replicas = message.getReplicaSet();
+                    String local_path = replica_path(file_name);
+                    logger.debug("Local file path of sdfs file ", file_name, ": ", local_path);
+
+                    // send request for file and put into local path - an update only fetches the blocks that changed
+                    logger.debug("Sending request to retrieve the file from ", ip, " - ", file_name);
+                    if (fetch_file(Collections.singletonList(ip), file_name, local_path) == -1) {
+                        // no ack - the file is not stored on this replica
+                        logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - File retrieval failed - ", file_name);
+                        this.forget(request_id);
+                        break;
+                    }
+                    logger.debug("File retrieved - ", file_name);
+
+                    // put locally
+                    long timestamp = message.getTimestamp();
+                    logger.debug("local_put with timestamp ", timestamp);
+                    local_put(local_path, file_name, timestamp, replicas);
+                    metadata.sync();
+
+                    // send back ack
+                    this.reply(new SDFSMessage(SDFSMessage.ACK_PUT_COMMIT, request_id, file_name, 0, null), ip);
+                    logger.debug("Sent back ack-put-commit to ", ip, " - ", file_name);
+                    break;
+                }
+                case SDFSMessage.BROADCAST_INSERT: {
+                    logger.debug("Received broadcast-insert from ", ip);
+                    // broadcast message informing a new inserted file
+                    HashSet<Integer> replicas = message.getReplicaSet();
+
+                    // update local sdfs file list
+                    metadata.set_replicas(file_name, replicas);
+                    read_cache.invalidate(file_name);
+                    break;
+                }
+                case SDFSMessage.DELETE: {
+                    logger.debug("Received delete request of ", file_name, " from ", ip);
+                    // delete-request (replica)
+                    local_delete(file_name);
+                    logger.debug("Locally deleted file - ", file_name);
+
+                    // send back ack
+                    this.reply(new SDFSMessage(SDFSMessage.ACK_DELETE, request_id, file_name, 0, null), ip);
+                    logger.debug("Sent back ack-delete to ", ip);
+                    break;
+                }
+                case SDFSMessage.BROADCAST_DELETE:
+                    logger.debug("Received broadcast-delete from ", ip);
+                    // delete-request (non-replica)
+                    local_delete(file_name);
+                    break;
+                case SDFSMessage.GET: {
+                    logger.debug("Received get request from ", ip);
+                    // get-request
+                    // response contains the timestamp of the requested file
+                    SDFSFile f = metadata.get(file_name);
+                    long file_timestamp = f == null ? 0 : f.getTimestamp();
+                    this.reply(new SDFSMessage(SDFSMessage.ACK_GET, request_id, file_name, file_timestamp, null), ip);
+                    break;
+                }
+                case SDFSMessage.COMMIT_PUT_REREP: {
+                    logger.debug("Received commit-put from ", ip, " - ", file_name);
+                    // replica information
+                    HashSet<Integer> replicas = message.getReplicaSet();
+                    String local_path = replica_path(file_name);
+                    logger.debug("Local file path for sdfs file ", file_name, ": ", local_path);
+
+                    // send request for file and put into local path - an update only fetches the blocks that changed
+                    logger.debug("Sending request to retrieve the file from ", ip, " - ", file_name);
+                    if (fetch_file(Collections.singletonList(ip), file_name, local_path) == -1) {
+                        // no ack - the file is not stored on this replica
+                        logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - File retrieval failed - ", file_name);
+                        this.forget(request_id);
+                        break;
+                    }
+                    logger.debug("File retrieved - ", file_name);
+
+                    long timestamp = message.getTimestamp();
+                    logger.debug("local_put with timestamp ", timestamp);
+                    local_put(local_path, file_name, timestamp, replicas);
+                    metadata.sync();
+                    // send back ack
+                    this.reply(new SDFSMessage(SDFSMessage.ACK_REREP, request_id, file_name, 0, null), ip);
+                    break;
+                }
+                case SDFSMessage.DIGEST:
+                    // batch of metadata changes
+                    dissemination.receive(message.getPayload(), ip);
+                    break;
+                case SDFSMessage.SUMMARY:
+                    // anti-entropy - answer with the changes of the buckets that differ
+                    dissemination.reconcile(message.getPayload(), ip);
+                    break;
+                case SDFSMessage.BROADCAST_UPDATE: {
+                    logger.debug("Received broadcast-update from ", ip);
+                    // broadcast message informing a newly updated file - after re-replication
+                    HashSet<Integer> replicas = message.getReplicaSet();
+
+                    // update local sdfs file list
+                    metadata.set_replicas(file_name, replicas);
+                    read_cache.invalidate(file_name);
+                    break;
+                }
+                case SDFSMessage.ACK_PUT:
+                    // record count and max timestamp
+                    logger.debug("Received ack-put from ", ip);
+                    ack_operation(request_id, "ack-put", ip, message.getTimestamp());
+                    break;
+                case SDFSMessage.ACK_PUT_COMMIT:
+                    // record count
+                    logger.debug("Received ack-put-commit from ", ip);
+                    ack_operation(request_id, "ack-put-commit", ip, 0);
+                    break;
+                case SDFSMessage.ACK_GET:
+                    // record count and max timestamp with max ip
+                    logger.debug("Received ack-get from ", ip);
+                    ack_operation(request_id, "ack-get", ip, message.getTimestamp());
+                    break;
+                case SDFSMessage.ACK_DELETE:
+                    // record count
+                    logger.debug("Received ack-delete from ", ip);
+                    ack_operation(request_id, "ack-delete", ip, 0);
+                    break;
+                case SDFSMessage.ACK_REREP:
+                    // record count
+                    logger.debug("Received ack-rerep from ", ip);
+                    ack_operation(request_id, "ack-rerep", ip, 0);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * One connection served by the FileServerThread
+     * request (kind + offset + length + name length + name) -> header (body length + crc32) -> body, none of the steps blocks the selector
+     * the body is the whole file, a byte range of it, the encoded block manifest or the file length
+     * a kept-alive connection gets a new FileTransfer for each request
+     */
+    private class FileTransfer {
+        private final SocketChannel sock;
+        private ByteBuffer request = ByteBuffer.allocate(file_request_size);
+        private boolean name_length_read = false;
+        private byte kind = REQUEST_FILE;
+        private boolean keep_alive = false;
+        // when the connection started waiting for this request, and whether the client closed it instead of sending one
+        private final long idle_since = System.currentTimeMillis();
+        private boolean ended = false;
+        private long range_offset = 0;
+        private long range_length = 0;
+        private String sdfs_file_name = null;
+        private ByteBuffer header = null;
+        private ByteBuffer body = null;
+        private FileChannel file = null;
+        private long start = 0;
+        private long position = 0;
+        private long length = 0;
+        // a framed body is sent one frame at a time - each built off the selector thread once the previous one is written
+        private boolean compressed = false;
+        private boolean framed = false;
+        private boolean deflate = true;
+        private int stored_frames = 0;
+        private ByteBuffer frame = null;
+        private IOException failure = null;
+
+        FileTransfer(SocketChannel sock) {
+            this.sock = sock;
+        }
+
+        // read the request frame - return true once the whole file name has arrived
+        boolean read_request() throws IOException {
+            while (true) {
+                if (this.request.hasRemaining() && this.sock.read(this.request) == -1) {
+                    if (this.idle()) {
+                        this.ended = true;
+                        return false;
+                    }
+                    throw new EOFException("connection closed before the request was complete");
+                }
+                if (this.request.hasRemaining()) {
+                    return false;
+                }
+                if (this.name_length_read) {
+                    this.sdfs_file_name = new String(this.request.array(), StandardCharsets.UTF_8);
+                    this.request = null;
+                    return true;
+                }
+                this.name_length_read = true;
+                this.kind = (byte) (this.request.get(0) & ~(REQUEST_COMPRESSED | REQUEST_KEEP_ALIVE));
+                this.compressed = (this.request.get(0) & REQUEST_COMPRESSED) != 0;
+                this.keep_alive = (this.request.get(0) & REQUEST_KEEP_ALIVE) != 0;
+                this.range_offset = this.request.getLong(1);
+                this.range_length = this.request.getLong(9);
+                this.request = ByteBuffer.allocate(this.request.getShort(17) & 0xFFFF);
+            }
+        }
+
+        // whether no byte of the request has arrived yet
+        boolean idle() {
+            return this.request != null && !this.name_length_read && this.request.position() == 0;
+        }
+
+        // open the file and build the header - the checksum and the manifest read the whole file, so this runs off the selector thread
+        void prepare() {
+            String local_file_path = sdfsToLocal(this.sdfs_file_name);
+            logger.info("FTP - local file path: ", local_file_path);
+            this.header = ByteBuffer.allocate(this.compressed ? file_header_size + 1 : file_header_size);
+            try {
+                if (local_file_path != null && (this.kind == REQUEST_MANIFEST || this.kind == REQUEST_LENGTH)) {
+                    if (this.kind == REQUEST_MANIFEST) {
+                        this.body = manifest_of(local_file_path).encode();
+                    } else {
+                        this.body = ByteBuffer.allocate(8);
+                        this.body.putLong(0, Files.size(Paths.get(local_file_path)));
+                    }
+                    this.length = this.body.remaining();
+                    CRC32 crc = new CRC32();
+                    crc.update(this.body.duplicate());
+                    this.header.putLong(this.length).putLong(crc.getValue());
+                } else if (local_file_path != null) {
+                    this.file = FileChannel.open(Paths.get(local_file_path), StandardOpenOption.READ);
+                    this.length = this.file.size();
+                    if (this.kind == REQUEST_RANGE) {
+                        if (this.range_offset < 0 || this.range_length <= 0 || this.range_offset >= this.length) {
+                            throw new IOException("range " + this.range_offset + "+" + this.range_length + " is out of bounds");
+                        }
+                        this.start = this.range_offset;
+                        this.length = Math.min(this.range_length, this.length - this.start);
+                    }
+                    boolean whole = this.start == 0 && this.length == this.file.size();
+                    this.header.putLong(this.length).putLong(whole ? checksum_of(local_file_path, this.file) : checksum(this.file, this.start, this.length));
+                    if (this.compressed) {
+                        this.framed = compression;
+                        this.header.put(this.framed ? ENCODING_FRAMED : ENCODING_PLAIN);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Unable to open file for transfer - ", this.sdfs_file_name);
+                e.printStackTrace();
+                this.close_file();
+                this.body = null;
+            }
+            if (this.file == null && this.body == null) {
+                // the file is not available on this node
+                this.header.clear();
+                this.header.putLong(-1).putLong(0);
+                if (this.compressed) {
+                    this.header.put(ENCODING_PLAIN);
+                }
+                this.length = 0;
+            }
+            this.header.flip();
+        }
+
+        // whether the next frame has to be built before anything more can be written
+        boolean needs_frame() {
+            return this.framed && this.failure == null && this.position < this.length && (this.frame == null || !this.frame.hasRemaining());
+        }
+
+        // read, checksum and deflate the next block into a frame - stored as is if it does not shrink by an eighth,
+        // and no more blocks are deflated once the first ones of the transfer were all stored
+        void next_frame() {
+            try {
+                int raw_length = (int) Math.min(compression_block_size, this.length - this.position);
+                if (this.frame == null) {
+                    this.frame = ByteBuffer.allocate(frame_header_size + compression_block_size);
+                }
+                byte[] out = this.frame.array();
+                ByteBuffer raw = ByteBuffer.allocate(raw_length);
+                while (raw.hasRemaining()) {
+                    if (this.file.read(raw, this.start + this.position + raw.position()) == -1) {
+                        throw new EOFException("file truncated while being sent - " + this.sdfs_file_name);
+                    }
+                }
+                CRC32 crc = new CRC32();
+                crc.update(raw.array(), 0, raw_length);
+                int stored_length = raw_length;
+                if (this.deflate) {
+                    Deflater deflater = SDFSServer.deflater.get();
+                    deflater.reset();
+                    deflater.setInput(raw.array(), 0, raw_length);
+                    deflater.finish();
+                    int limit = raw_length - raw_length / 8;
+                    int deflated = deflater.deflate(out, frame_header_size, limit);
+                    if (deflater.finished() && deflated < limit) {
+                        stored_length = deflated;
+                        this.stored_frames = -1;
+                    } else if (this.stored_frames >= 0 && ++this.stored_frames >= incompressible_frames) {
+                        this.deflate = false;
+                    }
+                }
+                if (stored_length == raw_length) {
+                    System.arraycopy(raw.array(), 0, out, frame_header_size, raw_length);
+                }
+                this.frame.clear();
+                this.frame.putInt(raw_length).putInt(stored_length).putInt((int) crc.getValue());
+                this.frame.limit(frame_header_size + stored_length);
+                this.frame.position(0);
+                this.position += raw_length;
+                compressed_bytes.addAndGet(raw_length);
+                framed_bytes.addAndGet(frame_header_size + stored_length);
+            } catch (IOException e) {
+                this.failure = e;
+            }
+        }
+
+        // write the header and then one chunk of the body - return true once everything is sent
+        boolean write() throws IOException {
+            if (this.header.hasRemaining()) {
+                this.sock.write(this.header);
+                if (this.header.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (this.body != null) {
+                this.sock.write(this.body);
+                return !this.body.hasRemaining();
+            }
+            if (this.framed) {
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                if (this.frame != null && this.frame.hasRemaining()) {
+                    this.sock.write(this.frame);
+                    if (this.frame.hasRemaining()) {
+                        return false;
+                    }
+                }
+                return this.position >= this.length;
+            }
+            if (this.position < this.length) {
+                long sent = this.file.transferTo(this.start + this.position, Math.min(file_chunk_size, this.length - this.position), this.sock);
+                if (sent == 0 && this.start + this.position >= this.file.size()) {
+                    throw new EOFException("file truncated while being sent - " + this.sdfs_file_name);
+                }
+                this.position += sent;
+            }
+            return this.position >= this.length;
+        }
+
+        private void close_file() {
+            try {
+                if (this.file != null) {
+                    this.file.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.file = null;
+        }
+
+        void close() {
+            this.close_file();
+            try {
+                this.sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * FileServer thread receiving clients' requests for files and sending back the files to the clients
+     * all connections are multiplexed on one selector - each client who is requesting a file need to establish TCP connections first with the server
+     */
+    private class FileServerThread extends Thread {
+        // transfers whose header has been prepared and are waiting to be switched to writing
+        private final ConcurrentLinkedQueue<FileTransfer> prepared = new ConcurrentLinkedQueue<FileTransfer>();
+
+        private final ExecutorService prepare_pool = Executors.newFixedThreadPool(file_prepare_threads);
+
+        // chain transfers and batch sessions waiting for the selector to drop their connections, and the threads serving them with blocking reads
+        private final ConcurrentLinkedQueue<FileTransfer> chained = new ConcurrentLinkedQueue<FileTransfer>();
+        private final ExecutorService chain_pool = Executors.newFixedThreadPool(chain_threads);
+
+        private Selector selector;
+        private SelectionKey accept_key;
+        private int connections = 0;
+        private long last_sweep = 0;
+
+        @Override
+        public void run() {
+            try {
+                this.selector = Selector.open();
+                SDFSServer.this.serv_sock.configureBlocking(false);
+                this.accept_key = SDFSServer.this.serv_sock.register(this.selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                SDFSServer.this.logger.error("[ERROR] ", SDFSServer.this.membershipListMaintainer.server_id_in_log(), " - Selector creation failed!");
+                e.printStackTrace();
+                return;
+            }
+
+            while (!SDFSServer.this.membershipListMaintainer.getShouldExit()) {
+                try {
+                    this.selector.select(500);
+                } catch (IOException e) {
+                    SDFSServer.this.logger.error("[ERROR] ", SDFSServer.this.membershipListMaintainer.server_id_in_log(), " - Selector failed!");
+                    e.printStackTrace();
+                    continue;
+                }
+
+                if (System.currentTimeMillis() - this.last_sweep >= 1000) {
+                    this.close_idle();
+                }
+
+                // chain transfers leave the selector - their cancelled keys were dropped by the select above
+                FileTransfer transfer;
+                while ((transfer = this.chained.poll()) != null) {
+                    this.handoff(transfer);
+                }
+
+                // prepared transfers start writing
+                while ((transfer = this.prepared.poll()) != null) {
+                    SelectionKey key = transfer.sock.keyFor(this.selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    FileTransfer t = (FileTransfer) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            this.read(key, t);
+                        } else if (key.isWritable() && t.write()) {
+                            logger.info("FTP - ", t.length, " bytes sent: ", t.sdfs_file_name);
+                            if (t.keep_alive) {
+                                this.recycle(key, t);
+                            } else {
+                                this.finish(key, t);
+                            }
+                        } else if (t.needs_frame()) {
+                            this.build(key, t);
+                        }
+                    } catch (IOException e) {
+                        SDFSServer.this.logger.error("[ERROR] ", SDFSServer.this.membershipListMaintainer.server_id_in_log(), " - File transfer failed - ", t.sdfs_file_name);
+                        e.printStackTrace();
+                        this.finish(key, t);
+                    }
+                }
+            }
+
+            this.prepare_pool.shutdownNow();
+            this.chain_pool.shutdownNow();
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // establish a connection
+        private void accept() {
+            SocketChannel sock;
+            try {
+                sock = SDFSServer.this.serv_sock.accept();
+                if (sock == null) {
+                    return;
+                }
+                sock.configureBlocking(false);
+                // a response on a kept-alive connection starts with a small header - not held back until the previous response is acked
+                sock.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                sock.register(this.selector, SelectionKey.OP_READ, new FileTransfer(sock));
+            } catch (IOException e) {
+                SDFSServer.this.logger.error("[ERROR] ", SDFSServer.this.membershipListMaintainer.server_id_in_log(), " - Socket accepting connection failed!");
+                e.printStackTrace();
+                return;
+            }
+            this.connections += 1;
+            if (this.connections >= max_file_connections) {
+                // bound the memory in use - stop accepting until a transfer finishes
+                this.accept_key.interestOps(0);
+            }
+        }
+
+        // read the request and prepare the file off the selector thread
+        private void read(SelectionKey key, final FileTransfer t) throws IOException {
+            if (!t.read_request()) {
+                if (t.ended) {
+                    this.finish(key, t);
+                }
+                return;
+            }
+            logger.info("FTP - received request to transfer: ", t.sdfs_file_name);
+            if (t.kind == REQUEST_CHAIN || t.kind == REQUEST_BATCH) {
+                key.cancel();
+                this.chained.add(t);
+                this.selector.wakeup();
+                return;
+            }
+            key.interestOps(0);
+            this.prepare_pool.execute(() -> {
+                t.prepare();
+                this.prepared.add(t);
+                this.selector.wakeup();
+            });
+        }
+
+        // deflate the next frame of a transfer off the selector thread - writing resumes once it is built
+        private void build(SelectionKey key, final FileTransfer t) {
+            key.interestOps(0);
+            this.prepare_pool.execute(() -> {
+                t.next_frame();
+                this.prepared.add(t);
+                this.selector.wakeup();
+            });
+        }
+
+        // receive a chain transfer or serve a batch session on the chain pool - the connection no longer counts towards max_file_connections
+        private void handoff(final FileTransfer t) {
+            this.connections -= 1;
+            if (this.accept_key.isValid()) {
+                this.accept_key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+            try {
+                t.sock.configureBlocking(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                t.close();
+                return;
+            }
+            this.chain_pool.execute(() -> {
+                try {
+                    if (t.kind == REQUEST_BATCH) {
+                        serve_batch(t.sock);
+                    } else {
+                        receive_chain(t.sock, t.sdfs_file_name, t.range_length);
+                    }
+                } finally {
+                    t.close();
+                }
+            });
+        }
+
+        // wait for the next request on a kept-alive connection
+        private void recycle(SelectionKey key, FileTransfer t) {
+            t.close_file();
+            key.attach(new FileTransfer(t.sock));
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // close connections that have waited keep_alive_timeout for a request - kept-alive ones the client no longer uses, and ones that never sent any
+        private void close_idle() {
+            this.last_sweep = System.currentTimeMillis();
+            for (SelectionKey key : this.selector.keys()) {
+                if (!key.isValid() || !(key.attachment() instanceof FileTransfer)) {
+                    continue;
+                }
+                FileTransfer t = (FileTransfer) key.attachment();
+                if (t.idle() && this.last_sweep - t.idle_since >= keep_alive_timeout) {
+                    this.finish(key, t);
+                }
+            }
+        }
+
+        // close the connection and resume accepting
+        private void finish(SelectionKey key, FileTransfer t) {
+            key.cancel();
+            t.close();
+            this.connections -= 1;
+            if (this.accept_key.isValid()) {
+                this.accept_key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+    }
+
+    /**
+     * Client end of a batch session with the file server of one node - see REQUEST_BATCH for the commands
+     * every command is written whole before its answer is read, so a session never has both ends blocked on writing
+     */
+    private class BatchConnection implements Closeable {
+        private final SocketChannel sock;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[batch_buffer_size];
+
+        BatchConnection(String ip) throws IOException {
+            this.sock = SocketChannel.open(new InetSocketAddress(ip, port_file));
+            ByteBuffer request = ByteBuffer.allocate(file_request_size);
+            request.put(REQUEST_BATCH).putLong(0).putLong(0).putShort((short) 0).flip();
+            while (request.hasRemaining()) {
+                this.sock.write(request);
+            }
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.sock), batch_buffer_size));
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.sock), batch_buffer_size));
+        }
+
+        private void send_names(byte command, List<String> names) throws IOException {
+            this.out.writeByte(command);
+            this.out.writeInt(names.size());
+            for (String name : names) {
+                this.out.writeUTF(name);
+            }
+            this.out.flush();
+        }
+
+        // timestamps of the replicas the node stores, -1 for files it does not store
+        long[] stat(List<String> names) throws IOException {
+            this.send_names(BATCH_STAT, names);
+            long[] timestamps = new long[names.size()];
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = this.in.readLong();
+            }
+            return timestamps;
+        }
+
+        // fetch files into their local paths - a file is only moved into place once its checksum matches
+        boolean[] fetch(List<String> names, List<String> local_paths) throws IOException {
+            this.send_names(BATCH_FETCH, names);
+            boolean[] fetched = new boolean[names.size()];
+            for (int i = 0; i < fetched.length; i++) {
+                long length = this.in.readLong();
+                fetched[i] = length >= 0 && receive_batch_file(this.in, length, local_paths.get(i), this.buffer);
+            }
+            return fetched;
+        }
+
+        // stage files on the node under their sdfs names - all are sent before the node answers which of them it staged
+        boolean[] put(List<String> names, List<String> local_paths, List<HashSet<Integer>> replicas, long timestamp) throws IOException {
+            this.out.writeByte(BATCH_PUT);
+            this.out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                this.out.writeUTF(names.get(i));
+                this.out.writeLong(timestamp);
+                this.out.writeByte(replicas.get(i).size());
+                for (Integer id : replicas.get(i)) {
+                    this.out.writeInt(id);
+                }
+                try (FileChannel f = FileChannel.open(Paths.get(local_paths.get(i)), StandardOpenOption.READ)) {
+                    long length = f.size();
+                    CRC32 crc = new CRC32();
+                    this.out.writeLong(length);
+                    copy_out(f, length, this.out, crc, this.buffer);
+                    this.out.writeLong(crc.getValue());
+                }
+            }
+            this.out.flush();
+            return this.statuses(names.size());
+        }
+
+        // move the files staged by put into place, or drop them - answer which files the node committed
+        boolean[] commit(List<String> names, List<Boolean> commit) throws IOException {
+            this.out.writeByte(BATCH_COMMIT);
+            this.out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                this.out.writeUTF(names.get(i));
+                this.out.writeBoolean(commit.get(i));
+            }
+            this.out.flush();
+            return this.statuses(names.size());
+        }
+
+        // delete files on the node - answer which of them it stored
+        boolean[] delete(List<String> names) throws IOException {
+            this.send_names(BATCH_DELETE, names);
+            return this.statuses(names.size());
+        }
+
+        private boolean[] statuses(int count) throws IOException {
+            boolean[] ok = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                ok[i] = this.in.readByte() == 1;
+            }
+            return ok;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.sock.close();
+        }
+    }
+
+    /**
+     * Part of a batch operation run against one node - given the node's id, the session with it and the indexes of the files it is responsible for
+     */
+    private interface BatchTask {
+        void run(int id, BatchConnection connection, List<Integer> files) throws IOException;
+    }
+
+    /**
+     * Idle keep-alive connections to the file servers of the other nodes - keyed by ip, the most recently used first
+     * a request borrows an idle connection or opens one, and gives it back once its response is read whole, so the concurrent block and range
+     * requests of a get or a commit share a few warm connections per node, each carrying one request after the other
+     */
+    private class ConnectionPool {
+        private final ConcurrentHashMap<String, ConcurrentLinkedDeque<PooledConnection>> idle = new ConcurrentHashMap<String, ConcurrentLinkedDeque<PooledConnection>>();
+        // ips of the running members, connections to any other node are not kept - null until the first membership check
+        private volatile Set<String> running = null;
+
+        private final AtomicLong opened = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+        private final AtomicLong stale = new AtomicLong();
+        private final LatencyHistogram connect_latency = new LatencyHistogram("us");
+
+        // an idle connection to ip, or a new one - a connection idle for half the server's keep_alive_timeout is closed rather than risk the server closing it mid-request
+        PooledConnection borrow(String ip) throws IOException {
+            ConcurrentLinkedDeque<PooledConnection> connections = this.idle.get(ip);
+            PooledConnection connection;
+            while (connections != null && (connection = connections.pollFirst()) != null) {
+                if (System.currentTimeMillis() - connection.released < keep_alive_timeout / 2) {
+                    this.reused.incrementAndGet();
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close_socket();
+            }
+            long start = System.nanoTime();
+            SocketChannel sock = SocketChannel.open(new InetSocketAddress(ip, port_file));
+            this.connect_latency.record((System.nanoTime() - start) / 1000);
+            this.opened.incrementAndGet();
+            return new PooledConnection(ip, sock);
+        }
+
+        // take back a connection whose response was read whole - closed instead if pooling is disabled, the node is not running or enough are idle
+        void release(PooledConnection connection) {
+            Set<String> running = this.running;
+            if (!connection_pool || (running != null && !running.contains(connection.ip))) {
+                connection.close_socket();
+                return;
+            }
+            ConcurrentLinkedDeque<PooledConnection> connections = this.idle.computeIfAbsent(connection.ip, k -> new ConcurrentLinkedDeque<PooledConnection>());
+            connection.released = System.currentTimeMillis();
+            connection.reused = false;
+            connections.addFirst(connection);
+            while (connections.size() > pool_idle_per_peer) {
+                PooledConnection eldest = connections.pollLast();
+                if (eldest == null) {
+                    break;
+                }
+                eldest.close_socket();
+            }
+        }
+
+        // a reused connection to ip turned out to be closed by the server - the node most likely restarted, so the other idle ones are dropped too
+        void stale(String ip) {
+            this.stale.incrementAndGet();
+            this.close(this.idle.remove(ip));
+        }
+
+        // keep connections only to the running members - called whenever member statuses change
+        void retain(Set<String> running) {
+            this.running = running;
+            for (String ip : new ArrayList<String>(this.idle.keySet())) {
+                if (!running.contains(ip)) {
+                    this.close(this.idle.remove(ip));
+                }
+            }
+        }
+
+        // close every idle connection
+        void clear() {
+            for (String ip : new ArrayList<String>(this.idle.keySet())) {
+                this.close(this.idle.remove(ip));
+            }
+        }
+
+        private void close(ConcurrentLinkedDeque<PooledConnection> connections) {
+            PooledConnection connection;
+            while (connections != null && (connection = connections.pollFirst()) != null) {
+                connection.close_socket();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long opened = this.opened.get();
+            long reused = this.reused.get();
+            int idle = 0;
+            for (ConcurrentLinkedDeque<PooledConnection> connections : this.idle.values()) {
+                idle += connections.size();
+            }
+            return opened + " opened, " + reused + " reused (" + (opened + reused == 0 ? 0 : reused * 100 / (opened + reused)) + "% of requests), "
+                    + this.stale.get() + " found closed, " + idle + " idle - connect " + this.connect_latency;
+        }
+    }
+
+    /**
+     * Connection to the file server of a node, borrowed from the ConnectionPool for one request
+     * closing it gives it back once done() marked the response as read whole, and closes the socket otherwise, as the stream is then out of step
+     */
+    private class PooledConnection implements Closeable {
+        private final String ip;
+        private final SocketChannel sock;
+        private boolean reused = false;
+        private boolean done = false;
+        private long released = 0;
+
+        PooledConnection(String ip, SocketChannel sock) {
+            this.ip = ip;
+            this.sock = sock;
+        }
+
+        void done() {
+            this.done = true;
+        }
+
+        @Override
+        public void close() {
+            if (this.done) {
+                this.done = false;
+                file_connections.release(this);
+            } else {
+                this.close_socket();
+            }
+        }
+
+        void close_socket() {
+            try {
+                this.sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Bounded cache of files fetched by get - keyed by sdfs file name and the timestamp of the fetched version, least recently used evicted first
+     * a get only reuses a copy of the version the quorum reports as newest, so an entry is never served stale - invalidation frees the space early
+     */
+    private class ReadCache {
+        private final String dir = sdfs_dir() + "cache/";
+        // entries in access order, and the bytes they hold
+        private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+        private long bytes = 0;
+        private final AtomicLong sequence = new AtomicLong();
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        // copy the cached version of a file to local_path - return false if that version is not cached
+        boolean copy_to(String sdfs_filename, long timestamp, String local_path) {
+            CachedFile entry;
+            synchronized (this) {
+                entry = this.entries.get(sdfs_filename);
+            }
+            if (entry == null || entry.timestamp != timestamp) {
+                this.misses.incrementAndGet();
+                return false;
+            }
+            try {
+                Files.copy(Paths.get(entry.path), Paths.get(local_path), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                // evicted meanwhile
+                this.misses.incrementAndGet();
+                return false;
+            }
+            this.hits.incrementAndGet();
+            return true;
+        }
+
+        // keep a copy of a fetched version - least recently used entries are dropped until it fits
+        void add(String sdfs_filename, long timestamp, String local_path) {
+            long size;
+            String path = this.dir + this.sequence.incrementAndGet();
+            try {
+                size = Files.size(Paths.get(local_path));
+                if (timestamp <= 0 || size > cache_bytes) {
+                    return;
+                }
+                Files.createDirectories(Paths.get(this.dir));
+                Files.copy(Paths.get(local_path), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Unable to cache ", sdfs_filename);
+                return;
+            }
+            ArrayList<CachedFile> dropped = new ArrayList<CachedFile>();
+            synchronized (this) {
+                CachedFile previous = this.entries.put(sdfs_filename, new CachedFile(timestamp, path, size));
+                if (previous != null) {
+                    this.bytes -= previous.size;
+                    dropped.add(previous);
+                }
+                this.bytes += size;
+                Iterator<CachedFile> it = this.entries.values().iterator();
+                while (this.bytes > cache_bytes && it.hasNext()) {
+                    CachedFile eldest = it.next();
+                    it.remove();
+                    this.bytes -= eldest.size;
+                    dropped.add(eldest);
+                    this.evictions.incrementAndGet();
+                }
+            }
+            delete(dropped);
+        }
+
+        // drop the cached copy of a file that was updated or deleted
+        void invalidate(String sdfs_filename) {
+            CachedFile entry;
+            synchronized (this) {
+                entry = this.entries.remove(sdfs_filename);
+                if (entry == null) {
+                    return;
+                }
+                this.bytes -= entry.size;
+            }
+            delete(Collections.singletonList(entry));
+        }
+
+        // drop every entry and whatever is left in the cache directory
+        void clear() {
+            synchronized (this) {
+                this.entries.clear();
+                this.bytes = 0;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(this.dir))) {
+                for (Path f : files) {
+                    Files.deleteIfExists(f);
+                }
+            } catch (NoSuchFileException e) {
+                // nothing cached yet
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void delete(List<CachedFile> files) {
+            for (CachedFile f : files) {
+                try {
+                    Files.deleteIfExists(Paths.get(f.path));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return this.entries.size() + " files, " + (this.bytes >> 20) + "/" + (cache_bytes >> 20) + " MB - "
+                    + this.hits.get() + " hits, " + this.misses.get() + " misses, " + this.evictions.get() + " evictions";
+        }
+    }
+
+    /**
+     * File received by a batch put and waiting for its commit, with the version and replicas it is put with
+     */
+    private static class StagedFile {
+        private final Path part_path;
+        private final long timestamp;
+        private final HashSet<Integer> replicas;
+
+        StagedFile(Path part_path, long timestamp, HashSet<Integer> replicas) {
+            this.part_path = part_path;
+            this.timestamp = timestamp;
+            this.replicas = replicas;
+        }
+    }
+
+    /**
+     * Checksum of a whole local file, with the size and modification time the file had when it was computed
+     */
+    private static class FileChecksum {
+        private final long size;
+        private final long modified;
+        private final FutureTask<Long> crc;
+
+        FileChecksum(long size, long modified, FutureTask<Long> crc) {
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Version of a file get left at a local path, with the size and modification time the file had then
+     */
+    private static class FetchedCopy {
+        private final String sdfs_filename;
+        private final long timestamp;
+        private final long size;
+        private final long modified;
+
+        FetchedCopy(String sdfs_filename, long timestamp, long size, long modified) {
+            this.sdfs_filename = sdfs_filename;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Cached copy of one version of a file
+     */
+    private static class CachedFile {
+        private final long timestamp;
+        private final String path;
+        private final long size;
+
+        CachedFile(long timestamp, String path, long size) {
+            this.timestamp = timestamp;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Spreads metadata changes (inserts, deletes and replica updates) to the group
+     * changes are queued and sent every gossip_interval ms as digests - batches sorted by name and delta encoded, packed into as few datagrams as possible
+     * every change carries a version (ms at the node that made it), and a member only applies changes newer than what it knows of the file - equal versions go to the greater replica set
+     * anti-entropy: a random member regularly receives the per-bucket fingerprints of this node's metadata and answers with the files of the buckets that differ
+     * digest payload: [change count (2)] then per change [kind (1)][version delta (zigzag varint)][shared name prefix (varint)][suffix length (varint)][suffix]
+     *                 [replica count (varint)][sorted replica ids, delta encoded (varint)] - the replicas are absent for deletes
+     */
+    private class MetadataDissemination {
+        private static final byte CHANGE_REPLICAS = 0;
+        private static final byte CHANGE_DELETE = 1;
+
+        // payload bytes per digest, leaving room for the message header
+        private static final int digest_size = SDFSMessage.MAX_SIZE - 64;
+
+        // changes waiting for the next digest - a later change of the same file replaces an earlier one
+        private final ConcurrentHashMap<String, Change> pending = new ConcurrentHashMap<String, Change>();
+
+        // latest known version of each file, negative for deleted files until their tombstone expires
+        private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+
+        private final AtomicLong clock = new AtomicLong();
+
+        // counters for the stats command
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong digests = new AtomicLong();
+        private final AtomicLong applied = new AtomicLong();
+        private final AtomicLong reconciled = new AtomicLong();
+
+        // queue a change made on this node - replicas is null for a delete
+        void publish(String sdfs_filename, Set<Integer> replicas) {
+            long version = this.next_version();
+            this.versions.put(sdfs_filename, replicas == null ? -version : version);
+            this.pending.put(sdfs_filename, new Change(replicas == null ? CHANGE_DELETE : CHANGE_REPLICAS, sdfs_filename, version, replicas));
+            this.published.incrementAndGet();
+        }
+
+        // strictly increasing, and close to the wall clock so versions from different nodes compare
+        private long next_version() {
+            long now = System.currentTimeMillis();
+            return this.clock.updateAndGet(last -> Math.max(last + 1, now));
+        }
+
+        // send the queued changes to every other member
+        void flush() {
+            if (this.pending.isEmpty()) {
+                return;
+            }
+            ArrayList<Change> changes = new ArrayList<Change>();
+            for (String name : new ArrayList<String>(this.pending.keySet())) {
+                Change c = this.pending.remove(name);
+                if (c != null) {
+                    changes.add(c);
+                }
+            }
+            List<ByteBuffer> batches = this.encode(changes);
+            for (int i = 0; i < membershipListMaintainer.getMembership_list().size(); i++) {
+                if (i + 1 != SDFSServer.this.index) {
+                    this.send(batches, member_address(i + 1));
+                }
+            }
+            logger.info("Disseminated ", changes.size(), " metadata changes in ", batches.size(), " digests");
         }
 
-        // send request to delete remotely
-        for (Integer i : this.SDFSFileList.get(sdfs_filename).getReplicas()) {
-            if (i != this.index) {
-                String msg = "delete_" + this.membershipListMaintainer.getMember(this.index - 1).getIp() + "_" + sdfs_filename;
-                int ret = -1;
-                while (ret == -1) {
-                    ret = send_msg(this.udp_socket, msg, this.membershipListMaintainer.getMembership_list().get(i - 1).getIp(), "delete_request");
-                }
+        private void send(List<ByteBuffer> batches, InetSocketAddress address) {
+            for (ByteBuffer batch : batches) {
+                send_msg(udp_socket, new SDFSMessage(SDFSMessage.DIGEST, next_request_id(), "", 0, null).withPayload(batch.duplicate()), address);
+                this.digests.incrementAndGet();
             }
         }
-        membershipListMaintainer.log("Done sending delete-request to all replicas - " + sdfs_filename);
 
-        // waiting for ACKs
-        while (count_delete < quorum) {
+        // apply the changes of a digest that are newer than what this node knows
+        void receive(ByteBuffer payload, String ip) {
             try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                int count = payload.getShort() & 0xFFFF;
+                long version = 0;
+                byte[] previous = new byte[0];
+                for (int n = 0; n < count; n++) {
+                    byte kind = payload.get();
+                    version += unzigzag(get_varlong(payload));
+                    int shared = SDFSMessage.get_varint(payload);
+                    byte[] name = Arrays.copyOf(previous, shared + SDFSMessage.get_varint(payload));
+                    payload.get(name, shared, name.length - shared);
+                    previous = name;
+                    HashSet<Integer> replicas = null;
+                    if (kind == CHANGE_REPLICAS) {
+                        replicas = new HashSet<Integer>();
+                        int id = 0;
+                        for (int r = SDFSMessage.get_varint(payload); r > 0; r--) {
+                            id += SDFSMessage.get_varint(payload);
+                            replicas.add(id);
+                        }
+                    }
+                    this.apply(new String(name, StandardCharsets.UTF_8), version, replicas);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Malformed digest from ", ip);
             }
         }
-        membershipListMaintainer.log("ACKs are collected meeting the quorum for delete-request - " + sdfs_filename);
 
-        // reset
-        count_delete = 0;
-
-        // local delete
-        local_delete(sdfs_filename);
+        // apply one change if it is newer than the known version of the file
+        // versions are not kept across restarts, so two nodes can hold different replica sets under the same version (0 once both restarted)
+        // such a tie goes to the greater replica set, so every node settles on the same set whatever order the changes arrive in
+        private void apply(String sdfs_filename, long version, Set<Integer> replicas) {
+            this.versions.compute(sdfs_filename, (name, known) -> {
+                long current = known == null ? 0 : Math.abs(known);
+                boolean tie = version == current && replicas != null && (known == null || known >= 0) && this.wins(replicas, metadata.get(name));
+                if (version <= current && !tie) {
+                    return known;
+                }
+                if (replicas == null) {
+                    local_delete(name);
+                } else {
+                    metadata.set_replicas(name, replicas);
+                    read_cache.invalidate(name);
+                }
+                this.applied.incrementAndGet();
+                return replicas == null ? -version : version;
+            });
+        }
 
-        // broadcast to the all other nodes
-        for (int i = 0; i < membershipListMaintainer.getMembership_list().size(); i++) {
-            if (!replicas.contains(i + 1) && i + 1 != this.index) {
-                String msg = "broadcast-delete_" + this.membershipListMaintainer.getMember(index - 1).getIp()
-                        + "_" + sdfs_filename;
-                send_msg(udp_socket, msg, membershipListMaintainer.getMember(i).getIp(), "broadcast-delete");
+        // replicas wins a tie against the known file - any set beats an unknown file, otherwise the sorted ids compare lexicographically
+        private boolean wins(Set<Integer> replicas, SDFSFile known) {
+            if (known == null) {
+                return true;
             }
+            Iterator<Integer> a = new TreeSet<Integer>(replicas).iterator();
+            Iterator<Integer> b = new TreeSet<Integer>(known.getReplicas()).iterator();
+            while (a.hasNext() && b.hasNext()) {
+                int c = Integer.compare(a.next(), b.next());
+                if (c != 0) {
+                    return c > 0;
+                }
+            }
+            return a.hasNext();
         }
-        System.out.println("Delete-request is successfully executed on the SDFS - SDFS file name" + sdfs_filename);
-    }
-
-    // re-replicate a file to a new node with id
-    private void put_rereplicate(int id, SDFSFile f) {
-        // send re-replicate-request to put remotely
-        boolean committed = false;
 
-        while (!committed) {
-            // construct the message with replica information
-            String replica_message = "";
-            for (Integer i : f.getReplicas()) {
-                replica_message += i + "|";
+        // anti-entropy round - send this node's fingerprints to a random active member
+        void gossip() {
+            int size = membershipListMaintainer.getMembership_list().size();
+            ArrayList<Integer> peers = new ArrayList<Integer>();
+            for (int i = 0; i < size; i++) {
+                if (i + 1 != SDFSServer.this.index && membershipListMaintainer.getMember(i).getStatus() == 1) {
+                    peers.add(i);
+                }
+            }
+            if (peers.isEmpty()) {
+                return;
             }
-            String msg = "commit-put-rerep_" + this.membershipListMaintainer.getMember(this.index - 1).getIp() + "_"
-                    + f.getSDFSFileName() + "_" + replica_message + "_" + f.getTimestamp();
-            int ret = -1;
-            while (ret == -1) {
-                ret = send_msg(this.udp_socket, msg, this.membershipListMaintainer.getMembership_list().get(id - 1).getIp(), "rereplicate-put");
+            ByteBuffer summary = ByteBuffer.allocate(8 * SDFSMetadataStore.fingerprint_buckets);
+            for (long f : metadata.fingerprints()) {
+                summary.putLong(f);
             }
+            summary.flip();
+            int peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+            send_msg(udp_socket, new SDFSMessage(SDFSMessage.SUMMARY, next_request_id(), "", 0, null).withPayload(summary), peer + 1);
+        }
 
-            // collecting this ack
-            while (count_rerep < 1) {
-                try {
-                    Thread.sleep(400);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        // answer a summary with every file and tombstone of the buckets whose fingerprints differ from this node's
+        void reconcile(ByteBuffer payload, String ip) {
+            long[] mine = metadata.fingerprints();
+            BitSet differ = new BitSet();
+            for (int b = 0; b < mine.length && payload.remaining() >= 8; b++) {
+                if (payload.getLong() != mine[b]) {
+                    differ.set(b);
+                }
+            }
+            if (differ.isEmpty()) {
+                return;
+            }
+            ArrayList<Change> changes = new ArrayList<Change>();
+            for (SDFSFile f : metadata.snapshot().values()) {
+                if (differ.get(SDFSMetadataStore.bucket(f.getSDFSFileName()))) {
+                    Long known = this.versions.get(f.getSDFSFileName());
+                    changes.add(new Change(CHANGE_REPLICAS, f.getSDFSFileName(), known == null || known < 0 ? 0 : known, f.getReplicas()));
+                }
+            }
+            for (Map.Entry<String, Long> v : this.versions.entrySet()) {
+                if (v.getValue() < 0 && differ.get(SDFSMetadataStore.bucket(v.getKey()))) {
+                    changes.add(new Change(CHANGE_DELETE, v.getKey(), -v.getValue(), null));
                 }
             }
-            committed = true;
-            membershipListMaintainer.log("ACK is collected for rerep-request - " + f.getSDFSFileName());
+            this.send(this.encode(changes), peer_address(ip));
+            this.reconciled.addAndGet(changes.size());
+            logger.info("Reconciled ", differ.cardinality(), " buckets with ", ip, " - ", changes.size(), " files sent");
+        }
 
-            // reset
-            count_rerep = 0;
+        // forget tombstones older than tombstone_ttl
+        void expire() {
+            long oldest = System.currentTimeMillis() - tombstone_ttl;
+            this.versions.entrySet().removeIf(v -> v.getValue() < 0 && -v.getValue() < oldest);
         }
-        membershipListMaintainer.log("Done sending re-replicate-request to a new node - " + id + " - " + f.getSDFSFileName());
-    }
 
-    // list all the machines where the file is currently being stored
-    private void listFile(String sdfs_filename) {
-        System.out.println("File Name: " + sdfs_filename);
-        System.out.println("Replicas who store the file: ");
-        if (this.SDFSFileList.get(sdfs_filename) == null) {
-            System.out.println("None");
-            return;
+        // sort the changes by name and pack them into digests - names share their prefix with the previous name, versions are deltas
+        private List<ByteBuffer> encode(List<Change> changes) {
+            Collections.sort(changes, (a, b) -> a.name.compareTo(b.name));
+            ArrayList<ByteBuffer> batches = new ArrayList<ByteBuffer>();
+            ByteBuffer buf = null;
+            int count = 0;
+            long version = 0;
+            byte[] previous = null;
+            for (Change c : changes) {
+                byte[] name = c.name.getBytes(StandardCharsets.UTF_8);
+                while (true) {
+                    if (buf == null) {
+                        buf = ByteBuffer.allocate(digest_size);
+                        buf.putShort((short) 0);
+                        count = 0;
+                        version = 0;
+                        previous = new byte[0];
+                    }
+                    int start = buf.position();
+                    try {
+                        buf.put(c.kind);
+                        put_varlong(buf, zigzag(c.version - version));
+                        int shared = 0;
+                        while (shared < Math.min(previous.length, name.length) && previous[shared] == name[shared]) {
+                            shared++;
+                        }
+                        SDFSMessage.put_varint(buf, shared);
+                        SDFSMessage.put_varint(buf, name.length - shared);
+                        buf.put(name, shared, name.length - shared);
+                        if (c.replicas != null) {
+                            SDFSMessage.put_varint(buf, c.replicas.length);
+                            int id = 0;
+                            for (int r : c.replicas) {
+                                SDFSMessage.put_varint(buf, r - id);
+                                id = r;
+                            }
+                        }
+                        version = c.version;
+                        previous = name;
+                        count++;
+                        break;
+                    } catch (BufferOverflowException e) {
+                        if (count == 0) {
+                            logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Metadata change too large for a digest - ", c.name);
+                            buf.position(start);
+                            break;
+                        }
+                        // the digest is full - close it and retry the change in the next one
+                        buf.position(start);
+                        batches.add(this.close(buf, count));
+                        buf = null;
+                    }
+                }
+            }
+            if (buf != null && count > 0) {
+                batches.add(this.close(buf, count));
+            }
+            return batches;
         }
-        int counter = 0;
-        for (Integer i : this.SDFSFileList.get(sdfs_filename).getReplicas()) {
-            System.out.println(this.membershipListMaintainer.getMembership_list().get(i - 1).getIp());
-            counter += 1;
+
+        private ByteBuffer close(ByteBuffer buf, int count) {
+            buf.putShort(0, (short) count);
+            buf.flip();
+            return buf;
         }
-        if (counter == 0) {
-            System.out.println("None");
+
+        private long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
         }
-    }
 
-    // list all files which are currently being stored at this machine
-    private void listStore() {
-        System.out.println("All files stored on this machine:");
-        if (this.localSDFSFileList.size() == 0) {
-            System.out.println("None");
-            return;
+        private long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
         }
-        for (String f : this.localSDFSFileList) {
-            System.out.println(f);
+
+        private void put_varlong(ByteBuffer buf, long value) {
+            while ((value & ~0x7FL) != 0) {
+                buf.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buf.put((byte) value);
+        }
+
+        private long get_varlong(ByteBuffer buf) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new BufferUnderflowException();
         }
-    }
 
-    /**
-     * Membership List Maintainer thread providing membership protocol service to the SDFS
-     */
-    private class MembershipListMaintainerThread extends Thread {
         @Override
-        public void run() {
-            SDFSServer.this.membershipListMaintainer.start();
+        public String toString() {
+            return String.format("%d changes published, %d digests sent, %d changes applied, %d files sent by anti-entropy",
+                    this.published.get(), this.digests.get(), this.applied.get(), this.reconciled.get());
+        }
+
+        /**
+         * One change of a file - replicas sorted, null for a delete
+         */
+        private class Change {
+            private final byte kind;
+            private final String name;
+            private final long version;
+            private final int[] replicas;
+
+            Change(byte kind, String name, long version, Set<Integer> replicas) {
+                this.kind = kind;
+                this.name = name;
+                this.version = version;
+                if (replicas == null) {
+                    this.replicas = null;
+                } else {
+                    this.replicas = new int[replicas.size()];
+                    int i = 0;
+                    for (int id : new TreeSet<Integer>(replicas)) {
+                        this.replicas[i++] = id;
+                    }
+                }
+            }
         }
     }
 
     /**
-     * Receiver thread watching on port 5001 for receiving messages through UDP
-     * Message format - message_type_message_content
+     * Gossip thread flushing queued metadata changes every gossip_interval ms, and starting an anti-entropy round every anti_entropy_interval ms
      */
-    private class ReceiverThread extends Thread {
+    private class GossipThread extends Thread {
         @Override
         public void run() {
+            long last_round = System.currentTimeMillis();
             while (!SDFSServer.this.membershipListMaintainer.getShouldExit()) {
-                if (SDFSServer.this.membershipListMaintainer.getStatus() != 1) {
-                    continue;
-                }
-                // get UDP message
-                byte[] data = new byte[1024];
-                DatagramPacket packet = new DatagramPacket(data, data.length);
                 try {
-                    udp_socket.receive(packet);
-                } catch (IOException e) {
+                    Thread.sleep(gossip_interval);
+                } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
-                String info = new String(data, 0, packet.getLength());
-                String[] messages = info.split("_");
-
-                // if the node is idle, skip the receiver
-                if (SDFSServer.this.membershipListMaintainer.getStatus() != 1) {
-                    continue;
-                }
-                String msg_type = messages[0];
-                String ip = messages[1];
-                String file_name = messages[2];
-                switch (msg_type) {
-                    case "put": {
-                        membershipListMaintainer.log("Received put request from " + ip + " - " + file_name);
-                        // put-request / re-replicate-request
-                        String response = "ack-put_" + membershipListMaintainer.getMember(index - 1).getIp() + "_" + file_name + "_";
-                        // response contains a timestamp of file
-                        if (localSDFSFileList.contains(file_name)) {
-                            response += Long.toString(SDFSFileList.get(file_name).getTimestamp());
-                        } else {
-                            response += "0";
-                        }
-                        send_msg(udp_socket, response, ip, "ack to put");
-                        membershipListMaintainer.log("Sent back ack-put to " + ip + " - " + file_name);
-                        break;
-                    }
-                    case "commit-put": {
-                        membershipListMaintainer.log("Received commit-put from " + ip + " - " + file_name);
-                        // parse the replica-info-message
-                        String[] rep = messages[3].split("\\|");
-                        HashSet<Integer> replicas = new HashSet<Integer>();
-                        for (String s : rep) {
-                            replicas.add(Integer.parseInt(s));
-                        }
-                        String local_path = "";
-                        if (localSDFSFileList.contains(file_name)) {
-                            // update
-                            local_path = SDFSFileList.get(file_name).getLocalFilePath();
-                        } else {
-                            // insert
-                            String currentDirectory = System.getProperty("user.dir");
-                            if (file_name.contains("/")) {
-                                local_path = currentDirectory.substring(0, currentDirectory.length() - 7) + "sdfs_dir/"
-                                        + file_name.replace("/", "-");
-                            } else {
-                                local_path = currentDirectory.substring(0, currentDirectory.length() - 7) + "sdfs_dir/"
-                                        + file_name;
-                            }
-                        }
-                        membershipListMaintainer.log("Local file path of sdfs file " + file_name + ": " + local_path);
-
-                        // send request for file and put into local path - establish tcp connection with the server to get the file
-                        membershipListMaintainer.log("Sending request to retrieve the file from " + ip + " - " + file_name);
-                        send_request(ip, file_name, local_path);
-                        membershipListMaintainer.log("File retrieved - " + file_name);
-
-                        // put locally
-                        long timestamp = Long.parseLong(messages[4]);
-                        membershipListMaintainer.log("local_put with timestamp " + timestamp);
-                        local_put(local_path, file_name, timestamp, replicas);
-
-                        // send back ack
-                        String response = "ack-put-commit_" + membershipListMaintainer.getMember(index - 1).getIp() + "_" + file_name;
-                        send_msg(udp_socket, response, ip, "ack-put-commit");
-                        membershipListMaintainer.log("Sent back ack-put-commit to " + ip + " - " + file_name);
-                        break;
-                    }
-                    case "broadcast-insert": {
-                        membershipListMaintainer.log("Received broadcast-insert from " + ip);
-                        // broadcast message informing a new inserted file
-                        String[] rep = messages[3].split("\\|");
-                        HashSet<Integer> replicas = new HashSet<Integer>();
-                        for (String s : rep) {
-                            replicas.add(Integer.parseInt(s));
-                        }
-
-                        // update local sdfs file list
-                        SDFSFile new_file = new SDFSFile(file_name, null, replicas, -1);
-                        if (SDFSServer.this.SDFSFileList.containsKey(file_name)) {
-                            // existing file
-                            SDFSServer.this.SDFSFileList.replace(file_name, new_file);
-                        } else {
-                            // new file
-                            SDFSServer.this.SDFSFileList.put(file_name, new_file);
-                        }
-                        break;
-                    }
-                    case "delete": {
-                        membershipListMaintainer.log("Received delete request of " + file_name + " from " + ip);
-                        // delete-request (replica)
-                        local_delete(file_name);
-                        membershipListMaintainer.log("Locally deleted file - " + file_name);
-
-                        // send back ack
-                        String response = "ack-delete_" + membershipListMaintainer.getMember(index - 1).getIp() + "_" + file_name;
-                        send_msg(udp_socket, response, ip, "ack-delete");
-                        membershipListMaintainer.log("Sent back ack-delete to " + ip);
-                        break;
-                    }
-                    case "broadcast-delete":
-                        membershipListMaintainer.log("Received broadcast-delete from " + ip);
-                        // delete-request (non-replica)
-                        local_delete(file_name);
-                        break;
-                    case "get": {
-                        membershipListMaintainer.log("Received get request from " + ip);
-                        // get-request
-                        String response = "ack-get_" + membershipListMaintainer.getMember(index - 1).getIp() + "_"
-                                + file_name + "_" + Long.toString(SDFSFileList.get(file_name).getTimestamp());
-                        // response contains the timestamp of the requested file
-                        send_msg(udp_socket, response, ip, "ack-get");
-                        break;
-                    }
-                    case "commit-put-rerep": {
-                        membershipListMaintainer.log("Received commit-put from " + ip + " - " + file_name);
-                        // parse the replica-info-message
-                        String[] rep = messages[3].split("\\|");
-                        HashSet<Integer> replicas = new HashSet<Integer>();
-                        for (String s : rep) {
-                            replicas.add(Integer.parseInt(s));
-                        }
-                        String local_path = "";
-                        if (localSDFSFileList.contains(file_name)) {
-                            local_path = SDFSFileList.get(file_name).getLocalFilePath();
-                        } else {
-                            localSDFSFileList.add(file_name);
-                            String currentDirectory = System.getProperty("user.dir");
-                            if (file_name.contains("/")) {
-                                local_path = currentDirectory.substring(0, currentDirectory.length() - 7) + "sdfs_dir/"
-                                        + file_name.replace("/", "-");
-                            } else {
-                                local_path = currentDirectory.substring(0, currentDirectory.length() - 7) + "sdfs_dir/"
-                                        + file_name;
-                            }
-                        }
-                        membershipListMaintainer.log("Local file path for sdfs file " + file_name + ": " + local_path);
-
-                        // send request for file and put into local path - establish tcp connection with the server to get the file
-                        membershipListMaintainer.log("Sending request to retrieve the file from " + ip + " - " + file_name);
-                        send_request(ip, file_name, local_path);
-                        membershipListMaintainer.log("File retrieved - " + file_name);
-
-                        long timestamp = Long.parseLong(messages[4]);
-                        membershipListMaintainer.log("local_put with timestamp " + timestamp);
-                        local_put(local_path, file_name, timestamp, replicas);
-                        // send back ack
-                        String response = "ack-rerep_" + membershipListMaintainer.getMember(index - 1).getIp() + "_" + file_name;
-                        send_msg(udp_socket, response, ip, "ack-rerep");
-                        break;
-                    }
-                    case "broadcast-update": {
-                        membershipListMaintainer.log("Received broadcast-update from " + ip);
-                        // broadcast message informing a newly updated file - after re-replication
-                        String[] rep = messages[3].split("\\|");
-                        HashSet<Integer> replicas = new HashSet<Integer>();
-                        for (String s : rep) {
-                            replicas.add(Integer.parseInt(s));
-                        }
-
-                        // update local sdfs file list
-                        SDFSFile new_file = new SDFSFile(file_name, null, replicas, -1);
-                        if (SDFSServer.this.SDFSFileList.containsKey(file_name)) {
-                            // existing file
-                            SDFSServer.this.SDFSFileList.get(file_name).setReplicas(replicas);
-                        } else {
-                            // new file
-                            SDFSServer.this.SDFSFileList.put(file_name, new_file);
-                        }
-                        break;
+                SDFSServer.this.dissemination.flush();
+                if (System.currentTimeMillis() - last_round >= anti_entropy_interval) {
+                    last_round = System.currentTimeMillis();
+                    // if the node is idle, skip the round
+                    if (SDFSServer.this.membershipListMaintainer.getMember(SDFSServer.this.index - 1).getStatus() == 1) {
+                        SDFSServer.this.dissemination.gossip();
                     }
-                    case "ack-put":
-                        // record count and max timestamp
-                        membershipListMaintainer.log("Received ack-put from " + ip);
-                        count_put++;
-                        timestamp_put = Math.max(timestamp_put, Long.parseLong(messages[3]));
-                        break;
-                    case "ack-put-commit":
-                        // record count
-                        membershipListMaintainer.log("Received ack-put-commit from " + ip);
-                        count_put_commit++;
-                        break;
-                    case "ack-get":
-                        // record count and max timestamp with max ip
-                        membershipListMaintainer.log("Received ack-get from " + ip);
-                        count_get++;
-                        if (timestamp_get < Long.parseLong(messages[3])) {
-                            maxip_get = ip;
-                            timestamp_get = Long.parseLong(messages[3]);
-                        }
-                        break;
-                    case "ack-delete":
-                        // record count
-                        membershipListMaintainer.log("Received ack-get from " + ip);
-                        count_delete++;
-                        break;
-                    case "ack-rerep":
-                        // record count
-                        membershipListMaintainer.log("Received ack-get from " + ip);
-                        count_rerep++;
-                        break;
+                    SDFSServer.this.dissemination.expire();
                 }
             }
         }
     }
 
     /**
-     * FileServer thread receiving a client's request for a file and send back the file to the client
-     * each client who is requesting a file need to establish TCP connections first with the server
+     * Re-replication of the files this node is responsible for - a bounded pool repairs the files with the fewest live replicas first
+     * transfers to one target node are limited to rerep_per_target at once, and their starts are paced to stay under rerep_bandwidth
      */
-    private class FileServerThread extends Thread {
-        @Override
-        public void run() {
-            while (!SDFSServer.this.membershipListMaintainer.getShouldExit()) {
-                // establish a connection
-                Socket sock = null;
-                try {
-                    sock = SDFSServer.this.serv_sock.accept();
-                } catch (IOException e) {
-                    SDFSServer.this.membershipListMaintainer.log("[ERROR] " + SDFSServer.this.membershipListMaintainer.server_id_in_log() + " - Socket accepting connection failed!");
-                    e.printStackTrace();
+    private class RereplicationScheduler {
+        private final ThreadPoolExecutor pool = new ThreadPoolExecutor(rerep_threads, rerep_threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+
+        // files queued or being repaired - a file is scheduled once until its repair ends
+        private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+
+        // files whose repair failed, checked again by the RereplicateThread
+        private final ConcurrentLinkedQueue<String> retries = new ConcurrentLinkedQueue<String>();
+
+        private final ConcurrentHashMap<Integer, Semaphore> target_permits = new ConcurrentHashMap<Integer, Semaphore>();
+        private final AtomicLong sequence = new AtomicLong();
+
+        // System.nanoTime() at which the next transfer may start - guarded by this
+        private long next_start = 0;
+
+        // progress
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong repaired = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        // queue a file that lost replicas - ignored while the file is already scheduled
+        void schedule(String sdfs_filename, int live_replicas) {
+            if (this.scheduled.add(sdfs_filename)) {
+                logger.info("Re-replicate is scheduled for file ", sdfs_filename, " - ", live_replicas, " live replicas");
+                this.pool.execute(new RepairTask(sdfs_filename, live_replicas, this.sequence.getAndIncrement()));
+            }
+        }
+
+        void shutdown() {
+            this.pool.shutdownNow();
+        }
+
+        // move the files waiting for another repair attempt into files
+        void drain_retries(Collection<String> files) {
+            String f;
+            while ((f = this.retries.poll()) != null) {
+                files.add(f);
+            }
+        }
+
+        // wait until a transfer of size bytes may start under the bandwidth limit
+        private void throttle(long size) throws InterruptedException {
+            if (rerep_bandwidth <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, this.next_start);
+                this.next_start = start + (long) (size * 1e9 / rerep_bandwidth);
+                wait = start - now;
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        // replace the failed replicas of a file with new nodes - return false if a transfer did not go through
+        private boolean repair(String f) throws InterruptedException {
+            SDFSFile file = metadata.getLocal(f);
+            if (file == null) {
+                logger.info("file ", f, " was removed while waiting for re-replication");
+                return true;
+            }
+            HashSet<Integer> ids = file.getReplicas();
+            ArrayList<Integer> failed_ids = new ArrayList<Integer>();
+            for (Integer id : ids) {
+                if (membershipListMaintainer.getMembership_list().get(id - 1).getStatus() != 1) {
+                    failed_ids.add(id);
+                }
+            }
+            if (failed_ids.isEmpty()) {
+                return true;
+            }
+            logger.info("Re-replicate is started for file ", f);
+            ids.removeAll(failed_ids);
+
+            // re-replicate the file on this node to other nodes - also in case there are less than four replicas
+            ArrayList<Integer> new_ids = new ArrayList<Integer>();
+            while (ids.size() < replication_factor) {
+                int next_id = findNextReplica(f, ids);
+                if (next_id == 0) {
+                    logger.info("Not enough active nodes to re-replicate ", f);
+                    break;
                 }
+                new_ids.add(next_id);
+                ids.add(next_id);
+            }
 
-                // read input from the socket (which is the file name)
-                BufferedReader in;
-                String sdfs_file_name = null;
-                String local_file_path = null;
+            long size = new File(file.getLocalFilePath()).length();
+            for (int id : new_ids) {
+                Semaphore permits = this.target_permits.computeIfAbsent(id, k -> new Semaphore(rerep_per_target));
+                permits.acquire();
                 try {
-                    assert sock != null;
-                    in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                    sdfs_file_name = in.readLine();
-                    local_file_path = sdfsToLocal(sdfs_file_name);
-                } catch (IOException e) {
-                    SDFSServer.this.membershipListMaintainer.log("[ERROR] " + SDFSServer.this.membershipListMaintainer.server_id_in_log() + " - Get input stream IO Exception!");
-                    e.printStackTrace();
+                    this.throttle(size);
+                    boolean committed = false;
+                    for (int attempt = 0; attempt < rerep_attempts && !committed
+                            && membershipListMaintainer.getMembership_list().get(id - 1).getStatus() == 1; attempt++) {
+                        committed = put_rereplicate(id, f, file.getTimestamp(), ids);
+                    }
+                    if (!committed) {
+                        logger.error("[ERROR] ", membershipListMaintainer.server_id_in_log(), " - Re-replicate on node #", id, " failed - ", f);
+                        return false;
+                    }
+                    this.bytes.addAndGet(size);
+                } finally {
+                    permits.release();
                 }
+                logger.info("Re-replicate for ", f, " on node #", id);
+            }
 
-                // transfer the requested file back to the client
-                membershipListMaintainer.log("FTP - received request to transfer: " + sdfs_file_name);
-                membershipListMaintainer.log("FTP - local file path: " + local_file_path);
+            // locally change the file object
+            metadata.set_replicas(f, ids);
+            logger.info("Re-replicate is done for file ", f);
 
-                // divide the file into chunks
-                assert local_file_path != null;
-                DataInputStream in_f = null;
-                try {
-                    in_f = new DataInputStream(new FileInputStream(local_file_path));
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
+            // broadcast to the rest
+            dissemination.publish(f, ids);
+            logger.info("Done: Re-replicate-update broadcast to the SDFS - ", f);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            int active = this.running.get();
+            return String.format("%d queued, %d running, %d repaired, %d failed, %d MB transferred",
+                    Math.max(0, this.scheduled.size() - active), active, this.repaired.get(), this.failed.get(), this.bytes.get() >> 20);
+        }
+
+        /**
+         * Repair of one file - ordered by live replicas, then by the order files were scheduled
+         */
+        private class RepairTask implements Runnable, Comparable<RepairTask> {
+            private final String sdfs_filename;
+            private final int live_replicas;
+            private final long sequence;
+
+            RepairTask(String sdfs_filename, int live_replicas, long sequence) {
+                this.sdfs_filename = sdfs_filename;
+                this.live_replicas = live_replicas;
+                this.sequence = sequence;
+            }
+
+            @Override
+            public int compareTo(RepairTask other) {
+                if (this.live_replicas != other.live_replicas) {
+                    return Integer.compare(this.live_replicas, other.live_replicas);
                 }
-                byte[] arr = new byte[1024];
+                return Long.compare(this.sequence, other.sequence);
+            }
+
+            @Override
+            public void run() {
+                running.incrementAndGet();
                 try {
-                    int len = 0;
-                    OutputStream os = sock.getOutputStream();
-                    assert in_f != null;
-                    while ((len = in_f.read(arr)) != -1) {
-                        // send the 1MB of arr over socket
-                        os.write(arr, 0, len);
-                        os.flush();
-                    }
-                    sock.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    if (repair(this.sdfs_filename)) {
+                        repaired.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                        retries.add(this.sdfs_filename);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    scheduled.remove(this.sdfs_filename);
                 }
             }
         }
     }
 
     /**
-     * Rereplicate thread receiving a client's request for a file and send back the file to the client
-     * each client who is requesting a file need to establish TCP connections first with the server
+     * Rereplicate thread watching the membership list every 500 ms - when nodes fail, only the files they held are checked, found through the reverse index
+     * the files this node is responsible for are handed to the RereplicationScheduler, which runs the transfers
      */
     private class RereplicateThread extends Thread {
+        // which members were active on the last check, null while this node is idle
+        private boolean[] active = null;
+        private long last_scan = 0;
+
         @Override
         public void run() {
             while (!SDFSServer.this.membershipListMaintainer.getShouldExit()) {
@@ -929,93 +5277,69 @@ public class SDFSServer {
                     e.printStackTrace();
                 }
                 // if the node is idle, skip the checker
-                if (SDFSServer.this.membershipListMaintainer.getMembership_list().get(SDFSServer.this.index - 1).getStatus() != 1) {
+                if (SDFSServer.this.membershipListMaintainer.getMember(SDFSServer.this.index - 1).getStatus() != 1) {
+                    this.active = null;
                     continue;
                 }
-                // periodically check for each file, whether all four replicas are alive
-                for (String f : SDFSServer.this.localSDFSFileList) {
-                    if (SDFSServer.this.SDFSFileList.get(f) == null) {
-                        membershipListMaintainer.log("file " + f + " does not exist in SDFSFileList but exist in localSDFSFileList");
-                        continue;
-                    }
-                    HashSet<Integer> ids = SDFSServer.this.SDFSFileList.get(f).getReplicas();
-                    ArrayList<Integer> id_list = new ArrayList<Integer>(ids);
-                    Collections.sort(id_list);
-
-                    // nodes to initiate re-replicate process on
-                    ArrayList<Integer> ids_to_check = new ArrayList<Integer>();
-
-                    // find the node who is active and has the max id among all active replicas
-                    int max_active_id = 0;
-                    for (int i = id_list.size() - 1; i >= 0; i--) {
-                        if (max_active_id == 0 && SDFSServer.this.membershipListMaintainer.getMembership_list().get(id_list.get(i) - 1).getStatus() == 1) {
-                            max_active_id = id_list.get(i);
-                            continue;
-                        }
-                        if (SDFSServer.this.membershipListMaintainer.getMembership_list().get(id_list.get(i) - 1).getStatus() != 1) {
-                            ids_to_check.add(id_list.get(i));
-                        }
-                    }
-
-                    if (ids_to_check.size() == 0) {
-                        continue;
-                    }
-
-                    // only the node who has the max active id is responsible for checking
-                    if (max_active_id == SDFSServer.this.index) {
-                        membershipListMaintainer.log("Re-replicate is started for file " + f);
-                        // check status of other replicas
-                        ids.removeAll(ids_to_check);
-                        ArrayList<Integer> new_ids = new ArrayList<Integer>();
-
-                        for (int id : ids_to_check) {
-                            // re-replicate the file on this node to another node
-                            int next_id = SDFSServer.this.findNextReplica(ids);
-                            new_ids.add(next_id);
-                            ids.add(next_id);
-                        }
-
-                        // in case there are less than four replicas
-                        while (ids.size() < 4) {
-                            int next_id = SDFSServer.this.findNextReplica(ids);
-                            new_ids.add(next_id);
-                            ids.add(next_id);
-                        }
+                boolean[] now = new boolean[SDFSServer.this.membershipListMaintainer.getMembership_list().size()];
+                for (int i = 0; i < now.length; i++) {
+                    now[i] = SDFSServer.this.membershipListMaintainer.getMember(i).getStatus() == 1;
+                }
 
-                        // locally change the file object
-                        SDFSFile new_f = SDFSServer.this.SDFSFileList.get(f);
-                        new_f.setReplicas(ids);
+                if (this.active == null || !Arrays.equals(this.active, now)) {
+                    SDFSServer.this.invalidate_addresses();
+                }
 
-                        for (int id : new_ids) {
-                            SDFSServer.this.put_rereplicate(id, new_f);
-                            membershipListMaintainer.log("Re-replicate for " + f + " on node #" + id);
+                Collection<String> files;
+                if (this.active == null || System.currentTimeMillis() - this.last_scan >= rerep_scan_interval) {
+                    // every local file - after joining, and periodically in case a change was missed
+                    files = SDFSServer.this.metadata.localFiles();
+                    this.last_scan = System.currentTimeMillis();
+                } else {
+                    // the files held by nodes that failed since the last check, and the files whose repair failed
+                    HashSet<String> affected = new HashSet<String>();
+                    for (int i = 0; i < now.length; i++) {
+                        if (i < this.active.length && this.active[i] && !now[i]) {
+                            logger.info("Node #", (i + 1), " failed - checking its files for re-replication");
+                            affected.addAll(SDFSServer.this.metadata.filesOn(i + 1));
                         }
-                        membershipListMaintainer.log("Re-replicate is done for file " + f);
-                    } else {
-                        continue;
                     }
+                    SDFSServer.this.rereplication.drain_retries(affected);
+                    files = affected;
+                }
+                for (String f : files) {
+                    this.check(f, now);
+                }
+                this.active = now;
+            }
+            SDFSServer.this.rereplication.shutdown();
+        }
 
-                    // broadcast to the rest
-                    String replica_message = "";
-                    for (Integer i : ids) {
-                        replica_message += i + "|";
-                    }
-                    for (int i = 0; i < membershipListMaintainer.getMembership_list().size(); i++) {
-                        if (i + 1 != SDFSServer.this.index) {
-                            String msg = "broadcast-update_" + SDFSServer.this.membershipListMaintainer.getMember(i).getIp()
-                                    + "_" + f + "_" + replica_message;
-                            send_msg(udp_socket, msg, membershipListMaintainer.getMember(i).getIp(), "broadcast-update");
-                        }
-                    }
-                    membershipListMaintainer.log("Done: Re-replicate-update broadcast to the SDFS - " + f);
+        // schedule a local file that lost replicas - only the node who has the max id among the active replicas is responsible for it
+        private void check(String f, boolean[] now) {
+            SDFSFile file = SDFSServer.this.metadata.getLocal(f);
+            if (file == null) {
+                return;
+            }
+            HashSet<Integer> ids = file.getReplicas();
+            int max_active_id = 0;
+            int failed = 0;
+            for (Integer id : ids) {
+                if (id <= now.length && now[id - 1]) {
+                    max_active_id = Math.max(max_active_id, id);
+                } else {
+                    failed += 1;
                 }
             }
+            if (failed > 0 && max_active_id == SDFSServer.this.index) {
+                SDFSServer.this.rereplication.schedule(f, ids.size() - failed);
+            }
         }
     }
 
     /**
      * Monitor thread watching for user input commands
-     * Commands: join, leave, list, info, exit, put, get, delete, ls, store
+     * Commands: join, leave, list, info, exit, put, get, delete, ls, store, stats
      */
     private class MonitorThread extends Thread {
         @Override
@@ -1032,12 +5356,16 @@ public class SDFSServer {
                     " - put [local_file_name] [sdfs_file_name]: insert or update file\n" +
                     " - get [sdfs_file_name] [local_file_name]: fetch file to local\n" +
                     " - delete [sdfs_file_name]: delete a file\n" +
+                    " - mput [local_dir] [sdfs_prefix]: insert or update every file of a directory as sdfs_prefix + file name\n" +
+                    " - mget [sdfs_prefix] [local_dir]: fetch every file whose name starts with sdfs_prefix to a directory\n" +
+                    " - mdelete [sdfs_prefix]: delete every file whose name starts with sdfs_prefix\n" +
                     " - ls [sdfs_file_name]: list all the machines where the file is currently being stored\n" +
-                    " - store: list all files which are currently being stored at this machine";
+                    " - store: list all files which are currently being stored at this machine\n" +
+                    " - stats: print latency histograms of put/get/delete/re-replicate quorums";
             System.out.println(commandInfo);
             command = in.nextLine();
             while (true) {
-                membershipListMaintainer.log("[INFO] " + membershipListMaintainer.server_id_in_log() + " - received command: " + command);
+                logger.info("[INFO] ", membershipListMaintainer.server_id_in_log(), " - received command: ", command);
                 if (command.equals("exit")) {
                     if (membershipListMaintainer.getStatus() == 1) {
                         // status is active, unable to exit
@@ -1045,7 +5373,7 @@ public class SDFSServer {
                     } else {
                         // notify other threads to finish and then exit
                         membershipListMaintainer.setShouldExit(true);
-                        membershipListMaintainer.log("[INFO] " + membershipListMaintainer.server_id_in_log() + " - exited ");
+                        logger.info("[INFO] ", membershipListMaintainer.server_id_in_log(), " - exited ");
                         System.out.println("Successfully exited.");
                         break;
                     }
@@ -1063,18 +5391,17 @@ public class SDFSServer {
                         // already in the group
                         System.out.println("Already in the group, no action to take.");
                     } else {
-                        // delete all files in the directory before rejoining
-                        SDFSServer.this.localSDFSFileList.clear();
-                        SDFSServer.this.SDFSFileList.clear();
+                        // forget the sdfs directory before rejoining - replicas still on disk are kept
+                        SDFSServer.this.metadata.retain_local();
 
                         // join the group via the introducer
                         int result = membershipListMaintainer.join();
                         if (result == 1) {
                             System.out.println("Joined successfully!");
-                            membershipListMaintainer.log("[INFO] " + membershipListMaintainer.server_id_in_log() + " - Joined successfully");
+                            logger.info("[INFO] ", membershipListMaintainer.server_id_in_log(), " - Joined successfully");
                         } else {
                             System.out.println("Join-request failed, please try again!");
-                            membershipListMaintainer.log("[INFO] " + membershipListMaintainer.server_id_in_log() + " - failed to join");
+                            logger.info("[INFO] ", membershipListMaintainer.server_id_in_log(), " - failed to join");
                         }
                     }
                 } else if (command.equals("leave")) {
@@ -1097,7 +5424,7 @@ public class SDFSServer {
                         if (!f.exists()) {
                             System.out.println("File does not exist!");
                         } else {
-                            put(local_filename, sdfs_filename);
+                            this.put(in, local_filename, sdfs_filename);
                         }
                     }
                 } else if (command.startsWith("get")) {
@@ -1107,7 +5434,13 @@ public class SDFSServer {
                     } else {
                         String local_filename = command.split(" ")[2];
                         String sdfs_filename = command.split(" ")[1];
-                        get(sdfs_filename, local_filename);
+                        try {
+                            String path = getFile(sdfs_filename, local_filename);
+                            System.out.println("Get-request is successfully executed on the SDFS - SDFS file name: " + sdfs_filename);
+                            System.out.println("File requested is located at: " + path);
+                        } catch (SDFSException e) {
+                            System.out.println(e.getMessage());
+                        }
                     }
                 } else if (command.startsWith("delete")) {
                     // delete a file
@@ -1115,7 +5448,37 @@ public class SDFSServer {
                         System.out.println("Wrong number of arguments (delete [sdfs_file_name])!");
                     } else {
                         String sdfs_filename = command.split(" ")[1];
-                        delete(sdfs_filename);
+                        try {
+                            deleteFile(sdfs_filename);
+                            System.out.println("Delete-request is successfully executed on the SDFS - SDFS file name: " + sdfs_filename);
+                        } catch (SDFSException e) {
+                            System.out.println(e.getMessage());
+                        }
+                    }
+                } else if (command.startsWith("mput")) {
+                    // insert or update a directory of files
+                    if (command.split(" ").length != 3) {
+                        System.out.println("Wrong number of arguments (mput [local_dir] [sdfs_prefix])!");
+                    } else if (!new File(command.split(" ")[1]).isDirectory()) {
+                        System.out.println("Directory does not exist!");
+                    } else {
+                        put_all(in, command.split(" ")[1], command.split(" ")[2]);
+                    }
+                } else if (command.startsWith("mget")) {
+                    // retrieve all files under a prefix
+                    if (command.split(" ").length != 3) {
+                        System.out.println("Wrong number of arguments (mget [sdfs_prefix] [local_dir])!");
+                    } else if (!new File(command.split(" ")[2]).isDirectory()) {
+                        System.out.println("Directory does not exist!");
+                    } else {
+                        get_batch(command.split(" ")[1], command.split(" ")[2]);
+                    }
+                } else if (command.startsWith("mdelete")) {
+                    // delete all files under a prefix
+                    if (command.split(" ").length != 2) {
+                        System.out.println("Wrong number of arguments (mdelete [sdfs_prefix])!");
+                    } else {
+                        delete_batch(command.split(" ")[1]);
                     }
                 } else if (command.startsWith("ls")) {
                     // list all machines where a file is stored on the SDFS
@@ -1128,6 +5491,9 @@ public class SDFSServer {
                 } else if (command.equals("store")) {
                     // list all files which are currently being stored at this machine
                     listStore();
+                } else if (command.equals("stats")) {
+                    // print per-operation latency histograms
+                    printStats();
                 } else {
                     System.out.println("Wrong command!");
                 }
@@ -1137,6 +5503,55 @@ public class SDFSServer {
                 command = in.nextLine();
             }
         }
+
+        // put a file - an update within a minute of the previous one is only made once confirmed on the console
+        private void put(Scanner in, String local_filename, String sdfs_filename) {
+            try {
+                try {
+                    putFile(local_filename, sdfs_filename, false);
+                } catch (RecentUpdateException e) {
+                    if (!this.confirm(in, "This file has been updated within 1 minute. Are you sure that you want to update again?\n")) {
+                        // cancel this operation
+                        return;
+                    }
+                    putFile(local_filename, sdfs_filename, true);
+                }
+                System.out.println("Put-request is successfully executed on the SDFS - SDFS file name: " + sdfs_filename);
+            } catch (SDFSException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        // put a directory of files - the files updated within a minute of their previous version are only updated once confirmed, all at once
+        private void put_all(Scanner in, String local_dir, String sdfs_prefix) {
+            ArrayList<Path> paths = regular_files(local_dir);
+            if (paths == null) {
+                System.out.println("Unable to list the files in " + local_dir);
+                return;
+            }
+            ArrayList<Path> recent = put_batch(paths, sdfs_prefix, false);
+            if (!recent.isEmpty() && this.confirm(in, recent.size() + " files have been updated within 1 minute. Are you sure that you want to update them again?\n")) {
+                put_batch(recent, sdfs_prefix, true);
+            }
+        }
+
+        // ask a yes/no question on the console until it is answered
+        private boolean confirm(Scanner in, String question) {
+            System.out.println(question);
+            System.out.println("[Yes/No]:\n");
+            String reply = in.nextLine();
+            while (!reply.equalsIgnoreCase("yes")) {
+                if (reply.equalsIgnoreCase("no")) {
+                    return false;
+                }
+                // wrong command
+                System.out.println("Wrong Command!\n\n");
+                System.out.println(question);
+                System.out.println("[Yes/No]:\n");
+                reply = in.nextLine();
+            }
+            return true;
+        }
     }
 
     /**
@@ -1204,7 +5619,7 @@ public class SDFSServer {
 
         // start the service
         System.out.println("\nStarting the server service ...");
-        sdfsServer.start();
+        sdfsServer.start(true);
 
         // end the service
         sdfsServer.end();